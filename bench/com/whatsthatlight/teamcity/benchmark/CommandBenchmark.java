@@ -0,0 +1,96 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.benchmark;
+
+// Java
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Local
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.Utils;
+import com.whatsthatlight.teamcity.exceptions.InvalidNotificationTypeException;
+
+// Benchmark
+import org.openjdk.jmh.annotations.*;
+
+// The string handling done for every event: building a command, and
+// turning the committers of a build into the recipients CSV
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CommandBenchmark {
+
+	// Number of committers, from a lone developer to a large merge
+	@Param({ "1", "10", "100" })
+	public int committers;
+
+	private LinkedList<SimpleEntry<String, String>> pairs;
+	private Set<String> usernames;
+	private String csv;
+	private String otherCsv;
+
+	@Setup
+	public void setUp() {
+		pairs = new LinkedList<SimpleEntry<String, String>>();
+		pairs.add(new SimpleEntry<String, String>("notificationtypeid", "4"));
+		pairs.add(new SimpleEntry<String, String>("projectid", "project12"));
+		pairs.add(new SimpleEntry<String, String>("buildconfigid", "bt345"));
+		usernames = new LinkedHashSet<String>();
+		List<String> others = new ArrayList<String>();
+		for (int i = 0; i < committers; i++) {
+			usernames.add("developer" + i);
+			// Half of them overlap
+			others.add("developer" + (i + committers / 2));
+		}
+		csv = Utils.convertSetToCsv(usernames, Utils.TO_STRING, ",");
+		otherCsv = Utils.convertSetToCsv(others, Utils.TO_STRING, ",");
+		pairs.add(new SimpleEntry<String, String>("recipients", csv));
+	}
+
+	@Benchmark
+	public String createCommand() {
+		return Utils.createCommand(pairs);
+	}
+
+	@Benchmark
+	public byte[] encodeBuildNotificationCommand() {
+		return Utils.encodeBuildNotificationCommand(
+				NotificationType.BUILD_FAILED, "project12", "bt345", csv);
+	}
+
+	@Benchmark
+	public String convertSetToCsv() {
+		return Utils.convertSetToCsv(usernames, Utils.TO_STRING, ",");
+	}
+
+	@Benchmark
+	public String mergeCsvs() {
+		return Utils.mergeCsvs(csv, otherCsv);
+	}
+
+	@Benchmark
+	public String getName() throws InvalidNotificationTypeException {
+		return NotificationType.getName(NotificationType.BUILD_FAILED);
+	}
+
+}
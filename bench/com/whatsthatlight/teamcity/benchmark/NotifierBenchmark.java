@@ -0,0 +1,118 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.benchmark;
+
+// Java
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Jetbrains
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.users.SUser;
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.LightsNotifier;
+import com.whatsthatlight.teamcity.Utils;
+import com.whatsthatlight.teamcity.load.SyntheticBuilds;
+
+// Benchmark
+import org.openjdk.jmh.annotations.*;
+
+// What a TeamCity event thread pays for an event: resolving the committers,
+// building the command and queueing it. The build is a stand-in, so the
+// cost of TeamCity itself finding the committers is not included, and
+// neither is the network, as commands are only queued. It's a proxy rather
+// than a mock, as a mock would record every call and measure itself.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class NotifierBenchmark {
+
+	// Number of committers to the build
+	@Param({ "1", "10", "50" })
+	public int committers;
+
+	private Logger logger;
+	private LightsNotifier notifier;
+	private SRunningBuild build;
+	private Set<SUser> users = Collections.emptySet();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		// Queueing drops old commands once the queue is full; that's not
+		// worth logging here
+		logger = Utils.LOGGER;
+		Utils.LOGGER = new QuietLogger();
+		notifier = new LightsNotifier(SyntheticBuilds.registry());
+		build = new SyntheticBuilds(committers).build(1, "project12", "bt345");
+	}
+
+	// Stop the notifier's threads, so that they don't carry on into the
+	// next trial
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		notifier.dispose();
+		Utils.LOGGER = logger;
+	}
+
+	// A build starting, so the committers are resolved and then cached
+	@Benchmark
+	public void notifyBuildStarted() {
+		notifier.notifyBuildStarted(build, users);
+	}
+
+	// A build finishing, so the committers are resolved every time
+	@Benchmark
+	public void notifyBuildFinished() {
+		notifier.notifyBuildSuccessful(build, users);
+	}
+
+	// Writes nothing
+	private static class QuietLogger extends Logger {
+
+		public boolean isDebugEnabled() {
+			return false;
+		}
+
+		public void debug(String message) {
+		}
+
+		public void debug(Throwable t) {
+		}
+
+		public void debug(String message, Throwable t) {
+		}
+
+		public void error(String message, Throwable t, String... details) {
+		}
+
+		public void info(String message) {
+		}
+
+		public void info(String message, Throwable t) {
+		}
+
+		public void warn(String message, Throwable t) {
+		}
+
+		public void setLevel(org.apache.log4j.Level level) {
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.load;
+
+// Java
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+// Stands in for the notification server on a local port: it takes any
+// number of connections, answers the capabilities request as a streaming
+// server that only speaks text, splits what it reads into commands at the
+// terminator and hands each one to the listener, parsed into its keys and
+// values.
+public class FakeNotificationServer {
+
+	public interface Listener {
+		void received(Map<String, String> command);
+	}
+
+	private static final String CAPABILITIES_REPLY = "requesttypeid=5;batch=1!";
+
+	private final ServerSocket server;
+	private final Listener listener;
+	private volatile boolean running = true;
+
+	public FakeNotificationServer(Listener listener) throws IOException {
+		this.server = new ServerSocket(0);
+		this.listener = listener;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "Fake notification server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public void close() throws IOException {
+		running = false;
+		server.close();
+	}
+
+	private void accept() {
+		while (running) {
+			final Socket client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					read(client);
+				}
+			}, "Fake notification server connection");
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	private void read(Socket client) {
+		try {
+			InputStream in = client.getInputStream();
+			OutputStream out = client.getOutputStream();
+			byte[] buffer = new byte[64 * 1024];
+			StringBuilder command = new StringBuilder();
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				for (int i = 0; i < n; i++) {
+					char c = (char) buffer[i];
+					if (c != '!') {
+						command.append(c);
+						continue;
+					}
+					Map<String, String> parsed = parse(command);
+					command.setLength(0);
+					if ("5".equals(parsed.get("requesttypeid"))) {
+						out.write(CAPABILITIES_REPLY.getBytes("US-ASCII"));
+						out.flush();
+					} else {
+						listener.received(parsed);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// The connection is gone; the notifier will open another
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// Nothing more to be done
+			}
+		}
+	}
+
+	private static Map<String, String> parse(CharSequence command) {
+		Map<String, String> parsed = new HashMap<String, String>();
+		for (String pair : command.toString().split(";")) {
+			int sep = pair.indexOf('=');
+			if (sep > 0) {
+				parsed.put(pair.substring(0, sep), pair.substring(sep + 1));
+			}
+		}
+		return parsed;
+	}
+
+}
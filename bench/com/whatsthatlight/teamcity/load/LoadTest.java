@@ -0,0 +1,162 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.load;
+
+// Java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Jetbrains
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.users.SUser;
+// Local
+import com.whatsthatlight.teamcity.LightsNotifier;
+import com.whatsthatlight.teamcity.NotificationEndpoint;
+import com.whatsthatlight.teamcity.NotificationRateLimiter;
+import com.whatsthatlight.teamcity.NotifierMetrics;
+
+// Finds out how many events per second the notifier can push: a number of
+// threads raise build events as fast as they can, and a fake notification
+// server on a local port checks off the commands as they arrive. Every
+// event is for a build configuration of its own, so none are merged on the
+// way; any that don't arrive were dropped from a full queue (or lost).
+//
+// Usage: LoadTest [threads] [events per thread] [committers per build]
+public class LoadTest {
+
+	// How long to wait for stragglers once every event was raised (ms)
+	private static final long SETTLE_TIMEOUT = 10000;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int events = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int committers = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		final long total = (long) threads * events;
+
+		// When each event was raised, by build configuration
+		final Map<String, Long> raised = new ConcurrentHashMap<String, Long>();
+		final long[] latencies = new long[(int) total];
+		final AtomicLong received = new AtomicLong();
+		FakeNotificationServer server = new FakeNotificationServer(
+				new FakeNotificationServer.Listener() {
+					public void received(Map<String, String> command) {
+						// Requests such as server-up aren't about a build
+						String buildConfigId = command.get("buildconfigid");
+						if (buildConfigId == null) {
+							return;
+						}
+						Long start = raised.remove(buildConfigId);
+						if (start != null) {
+							long n = received.getAndIncrement();
+							if (n < latencies.length) {
+								latencies[(int) n] = System.nanoTime() - start.longValue();
+							}
+						}
+					}
+				});
+		// Must be set before the notifier reads its configuration
+		System.setProperty(NotificationEndpoint.ENDPOINTS_PROPERTY,
+				"localhost:" + server.getPort());
+		// The storm is on purpose
+		System.setProperty(NotificationRateLimiter.GLOBAL_RATE_PROPERTY, "0");
+		final LightsNotifier notifier = new LightsNotifier(SyntheticBuilds
+				.registry());
+		final SyntheticBuilds builds = new SyntheticBuilds(committers);
+		final Set<SUser> users = Collections.emptySet();
+		final CountDownLatch done = new CountDownLatch(threads);
+		System.out.println(String.format(
+				"Raising %1$s events from %2$s threads, %3$s committers per build",
+				total, threads, committers));
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < events; i++) {
+						long id = (long) thread * events + i;
+						String buildConfigId = "bt" + id;
+						SRunningBuild build = builds.build(id, "project"
+								+ thread, buildConfigId);
+						raised.put(buildConfigId, Long.valueOf(System.nanoTime()));
+						// Alternate the kinds of events, so that all lanes
+						// are busy
+						switch (i % 3) {
+						case 0:
+							notifier.notifyBuildStarted(build, users);
+							break;
+						case 1:
+							notifier.notifyBuildSuccessful(build, users);
+							break;
+						default:
+							notifier.notifyBuildFailed(build, users);
+							break;
+						}
+					}
+					done.countDown();
+				}
+			}, "Load " + t).start();
+		}
+		done.await();
+		long raisedIn = System.nanoTime() - start;
+		long last = -1;
+		long settleStart = System.currentTimeMillis();
+		while (received.get() < total
+				&& System.currentTimeMillis() - settleStart < SETTLE_TIMEOUT) {
+			if (received.get() != last) {
+				last = received.get();
+				settleStart = System.currentTimeMillis();
+			}
+			Thread.sleep(50);
+		}
+		long deliveredIn = System.nanoTime() - start;
+		server.close();
+
+		int n = (int) Math.min(received.get(), latencies.length);
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		List<String> report = new ArrayList<String>();
+		report.add(String.format("Raised:      %1$s events in %2$s ms (%3$.0f events/s)",
+				total, raisedIn / 1000000, total * 1e9 / raisedIn));
+		report.add(String.format("Delivered:   %1$s commands in %2$s ms (%3$.0f commands/s)",
+				n, deliveredIn / 1000000, n * 1e9 / deliveredIn));
+		report.add(String.format("Lost:        %1$s", total - n));
+		report.add(String.format("Latency:     p50=%1$.2f ms p90=%2$.2f ms p99=%3$.2f ms max=%4$.2f ms",
+				percentile(sorted, 0.5), percentile(sorted, 0.9),
+				percentile(sorted, 0.99), percentile(sorted, 1.0)));
+		for (String line : report) {
+			System.out.println(line);
+		}
+		System.out.print(NotifierMetrics.get().dump());
+		System.exit(0);
+	}
+
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(sorted.length * fraction) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+}
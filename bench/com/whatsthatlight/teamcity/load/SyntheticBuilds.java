@@ -0,0 +1,133 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.load;
+
+// Java
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+
+// Jetbrains
+import jetbrains.buildServer.notification.NotificatorRegistry;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserSet;
+
+// Makes stand-ins for TeamCity objects that answer only what the notifier
+// asks of them. They are dynamic proxies rather than mocks, as mocks are
+// too slow to be called from many threads at a high rate.
+public class SyntheticBuilds {
+
+	private final Set<SUser> committers = new HashSet<SUser>();
+
+	public SyntheticBuilds(int committerCount) {
+		for (int i = 0; i < committerCount; i++) {
+			final String username = "developer" + i;
+			committers.add(proxy(SUser.class, new Answers() {
+				Object answer(String method) {
+					return "getUsername".equals(method) ? username : null;
+				}
+			}));
+		}
+	}
+
+	// A running build of its own build configuration, so that its commands
+	// are never merged with those of another build
+	public SRunningBuild build(final long buildId, final String projectId,
+			final String buildConfigId) {
+		final UserSet<SUser> userSet = proxy(UserSet.class, new Answers() {
+			Object answer(String method) {
+				return "getUsers".equals(method) ? committers : null;
+			}
+		});
+		return proxy(SRunningBuild.class, new Answers() {
+			Object answer(String method) {
+				if ("getBuildId".equals(method)) {
+					return Long.valueOf(buildId);
+				} else if ("getProjectId".equals(method)) {
+					return projectId;
+				} else if ("getBuildTypeId".equals(method)) {
+					return buildConfigId;
+				} else if ("getFullName".equals(method)) {
+					return projectId + " :: " + buildConfigId;
+				} else if ("getCommitters".equals(method)) {
+					return userSet;
+				}
+				return null;
+			}
+		});
+	}
+
+	// A registry that takes the notifier and does nothing with it
+	public static NotificatorRegistry registry() {
+		return proxy(NotificatorRegistry.class, new Answers() {
+			Object answer(String method) {
+				return null;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<?> type, final Answers answers) {
+		return (T) Proxy.newProxyInstance(SyntheticBuilds.class
+				.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if ("hashCode".equals(method.getName())) {
+							return Integer.valueOf(System.identityHashCode(proxy));
+						} else if ("equals".equals(method.getName())) {
+							return Boolean.valueOf(proxy == args[0]);
+						}
+						Object answer = answers.answer(method.getName());
+						if (answer == null && method.getReturnType().isPrimitive()) {
+							return defaultOf(method.getReturnType());
+						}
+						return answer;
+					}
+				});
+	}
+
+	private static Object defaultOf(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == long.class) {
+			return Long.valueOf(0);
+		} else if (type == int.class) {
+			return Integer.valueOf(0);
+		} else if (type == short.class) {
+			return Short.valueOf((short) 0);
+		} else if (type == byte.class) {
+			return Byte.valueOf((byte) 0);
+		} else if (type == char.class) {
+			return Character.valueOf((char) 0);
+		} else if (type == double.class) {
+			return Double.valueOf(0);
+		} else if (type == float.class) {
+			return Float.valueOf(0);
+		}
+		// void
+		return null;
+	}
+
+	abstract static class Answers {
+		abstract Object answer(String method);
+	}
+
+}
@@ -0,0 +1,379 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Turns key=value;...! commands into the compact binary format, for a
+// server that asked for it during negotiation. Every command becomes one
+// frame:
+//
+//   frame   = varint(length of body), body
+//   body    = varint(number of pairs), pair...
+//             (zero pairs: the rest of the body is the text command as is)
+//   pair    = ref(key), value
+//   value   = varint                 for notificationtypeid, requesttypeid
+//                                    and status
+//           | ref                    for projectid and buildconfigid
+//           | set                    for recipients
+//           | string                 for anything else
+//   ref     = varint(0), string      a string that isn't interned
+//           | varint(1), string      a string that gets the next handle,
+//                                    counting up from 2
+//           | varint(handle)         a string sent before
+//   set     = varint(0), names       a set of names that isn't interned
+//           | varint(1), names       a set that gets the next set handle,
+//                                    counting up from 3
+//           | varint(2), varint(base), names, names
+//                                    the set with handle base, plus the
+//                                    first names and minus the second; it
+//                                    gets the next set handle
+//           | varint(handle)         a set sent before
+//   names   = varint(count), ref...  (sorted; the order means nothing)
+//   string  = varint(length), bytes  (US-ASCII)
+//   varint  = unsigned, 7 bits per byte, least significant first, the high
+//             bit set on all but the last byte
+//
+// Keys and IDs are thus sent in full once per connection, after which they
+// take a byte or two. So are sets of recipients, which tend to stay the
+// same from one event of a build to the next: a new set is sent as the
+// names added to and removed from the last set of its build configuration,
+// if that's shorter than the set itself. A key that isn't one of the
+// protocol's, like the numbered keys of a snapshot, is always sent in full,
+// so that a large snapshot doesn't use up the handles. Handles are only
+// valid on the connection they were handed out on, so the encoder is reset
+// whenever the connection is.
+public class BinaryCommandEncoder {
+
+	private static final byte TERM = (byte) Utils.CMD_TERM.charAt(0);
+	private static final byte SEP = (byte) Utils.CMD_SEP.charAt(0);
+	private static final byte KV_SEP = (byte) Utils.CMD_KV_SEP.charAt(0);
+	private static final byte NAME_SEP = (byte) ',';
+	private static final int LITERAL = 0;
+	private static final int DEFINE = 1;
+	private static final int DIFF = 2;
+	private static final int FIRST_HANDLE = 2;
+	private static final int FIRST_SET_HANDLE = 3;
+	// Beyond this many handles, new strings are no longer interned, so that
+	// neither side's table grows without bound
+	private static final int MAX_HANDLES = 4096;
+	// Likewise for sets of recipients
+	private static final int MAX_SETS = 1024;
+	private static final String BUILD_CONFIG_KEY = "buildconfigid";
+	private static final String RECIPIENTS_KEY = "recipients";
+	private static final String[] INT_KEYS = { "notificationtypeid",
+			"requesttypeid", "status" };
+	private static final String[] INTERNED_KEYS = { "projectid",
+			"buildconfigid" };
+	// The keys that get handles
+	private static final String[] KEYS = { "notificationtypeid",
+			"projectid", "buildconfigid", "recipients", "username", "state",
+			"requesttypeid", "status", "batch", "binary", "count" };
+
+	private final Map<String, Integer> handles = new HashMap<String, Integer>();
+	// Sets of recipients by handle, counting from the first set handle, and
+	// the other way around
+	private final List<Set<String>> sets = new ArrayList<Set<String>>();
+	private final Map<Set<String>, Integer> setHandles = new HashMap<Set<String>, Integer>();
+	// The handle of the last set of recipients sent for a build configuration
+	private final Map<String, Integer> lastSets = new HashMap<String, Integer>();
+	private byte[] body = new byte[256];
+	private int length = 0;
+	// The build configuration and set of recipients of the command being
+	// encoded, if any
+	private String buildConfigId;
+	private Integer setHandle;
+
+	// Forget the handles handed out, e.g. for a new connection
+	public void reset() {
+		handles.clear();
+		sets.clear();
+		setHandles.clear();
+		lastSets.clear();
+	}
+
+	public byte[] encode(byte[] command) {
+		length = 0;
+		int end = command.length;
+		if (end > 0 && command[end - 1] == TERM) {
+			end--;
+		}
+		int pairs = 0;
+		for (int i = 0; i < end; i++) {
+			if (command[i] == SEP) {
+				pairs++;
+			}
+		}
+		if (end > 0) {
+			pairs++;
+		}
+		int mark = handles.size();
+		int setMark = sets.size();
+		buildConfigId = null;
+		setHandle = null;
+		writeVarint(pairs);
+		int start = 0;
+		while (start < end) {
+			int sep = indexOf(command, SEP, start, end);
+			int kv = indexOf(command, KV_SEP, start, sep);
+			if (kv == sep || !writePair(command, start, kv, sep)) {
+				// Not something the binary format describes; send it as text
+				// and take back the handles handed out for it
+				if (handles.size() > mark) {
+					forgetHandlesFrom(mark);
+				}
+				forgetSetsFrom(setMark);
+				setHandle = null;
+				length = 0;
+				writeVarint(0);
+				writeBytes(command, 0, command.length);
+				break;
+			}
+			start = sep + 1;
+		}
+		if (buildConfigId != null && setHandle != null
+				&& (lastSets.size() < MAX_SETS || lastSets.containsKey(buildConfigId))) {
+			lastSets.put(buildConfigId, setHandle);
+		}
+		byte[] frame = new byte[varintLength(length) + length];
+		int offset = writeVarint(frame, 0, length);
+		System.arraycopy(body, 0, frame, offset, length);
+		return frame;
+	}
+
+	private boolean writePair(byte[] command, int start, int kv, int end) {
+		String key = ascii(command, start, kv);
+		if (contains(INT_KEYS, key)) {
+			int value = parseUnsigned(command, kv + 1, end);
+			if (value < 0) {
+				return false;
+			}
+			writeKey(key);
+			writeVarint(value);
+		} else if (contains(INTERNED_KEYS, key)) {
+			String value = ascii(command, kv + 1, end);
+			writeKey(key);
+			writeRef(value);
+			if (key.equals(BUILD_CONFIG_KEY)) {
+				buildConfigId = value;
+			}
+		} else if (key.equals(RECIPIENTS_KEY)) {
+			writeKey(key);
+			return writeSet(command, kv + 1, end);
+		} else {
+			writeKey(key);
+			writeVarint(end - kv - 1);
+			writeBytes(command, kv + 1, end - kv - 1);
+		}
+		return true;
+	}
+
+	private void writeKey(String key) {
+		if (contains(KEYS, key)) {
+			writeRef(key);
+		} else {
+			writeVarint(LITERAL);
+			writeString(key);
+		}
+	}
+
+	private void writeRef(String value) {
+		Integer handle = handles.get(value);
+		if (handle != null) {
+			writeVarint(handle.intValue());
+			return;
+		}
+		if (handles.size() < MAX_HANDLES) {
+			handles.put(value, Integer.valueOf(FIRST_HANDLE + handles.size()));
+			writeVarint(DEFINE);
+		} else {
+			writeVarint(LITERAL);
+		}
+		writeString(value);
+	}
+
+	private void writeString(String value) {
+		writeVarint(value.length());
+		ensureCapacity(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			body[length++] = (byte) value.charAt(i);
+		}
+	}
+
+	// A set is only written if it reads back the same: no empty or repeated
+	// names
+	private boolean writeSet(byte[] command, int start, int end) {
+		Set<String> names = new TreeSet<String>();
+		int count = 0;
+		for (int i = start; i < end; count++) {
+			int sep = indexOf(command, NAME_SEP, i, end);
+			if (sep == i || sep == end - 1) {
+				return false;
+			}
+			names.add(ascii(command, i, sep));
+			i = sep + 1;
+		}
+		if (names.size() != count) {
+			return false;
+		}
+		Integer handle = setHandles.get(names);
+		if (handle != null) {
+			writeVarint(handle.intValue());
+			setHandle = handle;
+			return true;
+		}
+		boolean define = sets.size() < MAX_SETS;
+		Integer base = buildConfigId != null ? lastSets.get(buildConfigId) : null;
+		if (define && base != null) {
+			Set<String> previous = sets.get(base.intValue() - FIRST_SET_HANDLE);
+			Set<String> added = new TreeSet<String>(names);
+			added.removeAll(previous);
+			Set<String> removed = new TreeSet<String>(previous);
+			removed.removeAll(names);
+			if (added.size() + removed.size() < names.size()) {
+				writeVarint(DIFF);
+				writeVarint(base.intValue());
+				writeNames(added);
+				writeNames(removed);
+				setHandle = define(names);
+				return true;
+			}
+		}
+		writeVarint(define ? DEFINE : LITERAL);
+		writeNames(names);
+		setHandle = define ? define(names) : null;
+		return true;
+	}
+
+	private void writeNames(Set<String> names) {
+		writeVarint(names.size());
+		for (String name : names) {
+			writeRef(name);
+		}
+	}
+
+	private Integer define(Set<String> names) {
+		Integer handle = Integer.valueOf(FIRST_SET_HANDLE + sets.size());
+		sets.add(names);
+		setHandles.put(names, handle);
+		return handle;
+	}
+
+	private void forgetSetsFrom(int size) {
+		while (sets.size() > size) {
+			setHandles.remove(sets.remove(sets.size() - 1));
+		}
+	}
+
+	// Handles are handed out in order, so the latest ones are the highest
+	private void forgetHandlesFrom(int size) {
+		handles.values().removeAll(Arrays.asList(range(FIRST_HANDLE + size,
+				FIRST_HANDLE + handles.size())));
+	}
+
+	private static Integer[] range(int from, int to) {
+		Integer[] range = new Integer[to - from];
+		for (int i = 0; i < range.length; i++) {
+			range[i] = Integer.valueOf(from + i);
+		}
+		return range;
+	}
+
+	private void writeVarint(int value) {
+		ensureCapacity(5);
+		length = writeVarint(body, length, value);
+	}
+
+	private void writeBytes(byte[] bytes, int offset, int count) {
+		ensureCapacity(count);
+		System.arraycopy(bytes, offset, body, length, count);
+		length += count;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > body.length) {
+			body = Arrays.copyOf(body, Math.max(body.length * 2, length + extra));
+		}
+	}
+
+	private static int writeVarint(byte[] buffer, int offset, int value) {
+		while ((value & ~0x7f) != 0) {
+			buffer[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte) value;
+		return offset;
+	}
+
+	private static int varintLength(int value) {
+		int n = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	// A non-negative int, or -1 if it isn't one
+	private static int parseUnsigned(byte[] bytes, int start, int end) {
+		if (start == end || end - start > 9) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			if (bytes[i] < '0' || bytes[i] > '9') {
+				return -1;
+			}
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return value;
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static String ascii(byte[] bytes, int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = (char) bytes[i];
+		}
+		return new String(chars);
+	}
+
+	private static boolean contains(String[] keys, String key) {
+		for (String k : keys) {
+			if (k.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
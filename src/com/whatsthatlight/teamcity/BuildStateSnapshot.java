@@ -0,0 +1,138 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The last state of every build configuration that raised an event since
+// TeamCity started, so that a notification server that (re)connects can
+// be brought up to date with a single command (see
+// Utils.encodeSnapshotCommand), rather than one build configuration at a
+// time as their next events come in, which may take hours. There is one
+// instance, as there is one set of build configurations; it's updated from
+// the TeamCity event threads.
+public class BuildStateSnapshot {
+
+	private static final BuildStateSnapshot INSTANCE = new BuildStateSnapshot();
+
+	// By project and build configuration
+	private final ConcurrentHashMap<String, BuildState> states = new ConcurrentHashMap<String, BuildState>();
+
+	public static BuildStateSnapshot get() {
+		return INSTANCE;
+	}
+
+	// Remember the latest build state of a build configuration, and return
+	// it; anything that isn't a build state is ignored, and null returned
+	public BuildState update(int notificationTypeId, String projectId,
+			String buildConfigId, String recipients) {
+		if (!NotificationType.isBuildState(notificationTypeId)) {
+			return null;
+		}
+		BuildState state = new BuildState(notificationTypeId, projectId,
+				buildConfigId, recipients);
+		states.put(projectId + "/" + buildConfigId, state);
+		return state;
+	}
+
+	// Give a state other recipients, unless a newer state of its build
+	// configuration came in since; returns the state it became, or null
+	public BuildState updateRecipients(BuildState state, String recipients) {
+		BuildState updated = new BuildState(state.getNotificationTypeId(),
+				state.getProjectId(), state.getBuildConfigId(), recipients);
+		if (!states.replace(state.getProjectId() + "/"
+				+ state.getBuildConfigId(), state, updated)) {
+			return null;
+		}
+		return updated;
+	}
+
+	// Remember a state of a build configuration, unless a state is known
+	// already, which is newer; returns whether it was remembered
+	public boolean updateIfAbsent(int notificationTypeId, String projectId,
+			String buildConfigId, String recipients) {
+		if (!NotificationType.isBuildState(notificationTypeId)) {
+			return false;
+		}
+		return states.putIfAbsent(projectId + "/" + buildConfigId,
+				new BuildState(notificationTypeId, projectId, buildConfigId,
+						recipients)) == null;
+	}
+
+	public int size() {
+		return states.size();
+	}
+
+	public boolean isEmpty() {
+		return states.isEmpty();
+	}
+
+	public List<BuildState> getStates() {
+		return new ArrayList<BuildState>(states.values());
+	}
+
+	// The whole snapshot as a single command, or null if it's empty
+	public Notification toNotification() {
+		List<BuildState> current = getStates();
+		if (current.isEmpty()) {
+			return null;
+		}
+		return new Notification(NotificationType.NONE, null, null, Utils
+				.encodeSnapshotCommand(current));
+	}
+
+	public void clear() {
+		states.clear();
+	}
+
+	public static class BuildState {
+
+		private final int notificationTypeId;
+		private final String projectId;
+		private final String buildConfigId;
+		private final String recipients;
+
+		public BuildState(int notificationTypeId, String projectId,
+				String buildConfigId, String recipients) {
+			this.notificationTypeId = notificationTypeId;
+			this.projectId = projectId;
+			this.buildConfigId = buildConfigId;
+			this.recipients = recipients;
+		}
+
+		public int getNotificationTypeId() {
+			return notificationTypeId;
+		}
+
+		public String getProjectId() {
+			return projectId;
+		}
+
+		public String getBuildConfigId() {
+			return buildConfigId;
+		}
+
+		public String getRecipients() {
+			return recipients;
+		}
+
+	}
+
+}
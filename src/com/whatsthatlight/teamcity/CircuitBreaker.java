@@ -0,0 +1,139 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.Random;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Stops us from trying to reach a notification server that is down. After
+// a number of consecutive failures the breaker opens and no attempts are
+// made for a backoff period, which doubles every time the breaker opens
+// again, up to a maximum. Half of the period is random, so that several
+// TeamCity servers don't retry in lock step. When the period is over, a
+// single attempt is let through (half-open): if it succeeds the breaker
+// closes, otherwise it opens again.
+public class CircuitBreaker {
+
+	public enum State {
+		// Attempts are made as usual
+		CLOSED,
+		// No attempts are made until the backoff period is over
+		OPEN,
+		// A single attempt is being made to see if the server is back
+		HALF_OPEN
+	}
+
+	// Internal property for the number of consecutive failures that opens the breaker
+	public static final String FAILURE_THRESHOLD_PROPERTY = Utils.PROPERTY_PREFIX + "breaker.failureThreshold";
+	// Internal property for the first backoff period (ms)
+	public static final String INITIAL_BACKOFF_PROPERTY = Utils.PROPERTY_PREFIX + "breaker.initialBackoff";
+	// Internal property for the longest backoff period (ms)
+	public static final String MAX_BACKOFF_PROPERTY = Utils.PROPERTY_PREFIX + "breaker.maxBackoff";
+	// Default number of consecutive failures that opens the breaker
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	// Default first backoff period (ms)
+	public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+	// Default longest backoff period (ms)
+	public static final long DEFAULT_MAX_BACKOFF = 5 * 60 * 1000;
+
+	private final String name;
+	private final int failureThreshold;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final Random random;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private int openings = 0;
+	private long retryAt = 0;
+
+	public CircuitBreaker(String name, int failureThreshold,
+			long initialBackoff, long maxBackoff, Random random) {
+		this.name = name;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.initialBackoff = Math.max(1, initialBackoff);
+		this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+		this.random = random;
+	}
+
+	// Create a breaker configured from the TeamCity internal properties
+	public static CircuitBreaker create(String name) {
+		return new CircuitBreaker(name, TeamCityProperties.getInteger(
+				FAILURE_THRESHOLD_PROPERTY, DEFAULT_FAILURE_THRESHOLD),
+				TeamCityProperties.getLong(INITIAL_BACKOFF_PROPERTY,
+						DEFAULT_INITIAL_BACKOFF), TeamCityProperties.getLong(
+						MAX_BACKOFF_PROPERTY, DEFAULT_MAX_BACKOFF),
+				new Random());
+	}
+
+	// Whether an attempt may be made now
+	public synchronized boolean allowRequest(long now) {
+		switch (state) {
+		case OPEN:
+			if (now < retryAt) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			return true;
+		case HALF_OPEN:
+			// The probe is still under way
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		if (state != State.CLOSED) {
+			Utils.logInfo(Utils.LOGGER, "%1$s is reachable again", name);
+		}
+		state = State.CLOSED;
+		failures = 0;
+		openings = 0;
+	}
+
+	public synchronized void recordFailure(long now) {
+		failures++;
+		if (state == State.HALF_OPEN || failures >= failureThreshold) {
+			openings++;
+			long backoff = initialBackoff << Math.min(openings - 1, 30);
+			if (backoff <= 0 || backoff > maxBackoff) {
+				backoff = maxBackoff;
+			}
+			long half = backoff / 2;
+			backoff = half + (long) (random.nextDouble() * (backoff - half));
+			retryAt = now + backoff;
+			if (state != State.OPEN) {
+				Utils.logWarn(Utils.LOGGER,
+						"%1$s is unreachable, retrying in %2$s ms", name,
+						backoff);
+			}
+			state = State.OPEN;
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	// When the next attempt will be let through, if the breaker is open
+	public synchronized long getRetryAt() {
+		return retryAt;
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.Arrays;
+
+// Writes a key=value;...! command straight into a byte buffer in the wire
+// encoding (US-ASCII). Keys are encoded once, up front, with key(). Each
+// thread has one encoder that it reuses (see get()), so building a command
+// only allocates the resulting byte array.
+public class CommandEncoder {
+
+	private static final byte TERM = (byte) Utils.CMD_TERM.charAt(0);
+	private static final byte SEP = (byte) Utils.CMD_SEP.charAt(0);
+	private static final byte KV_SEP = (byte) Utils.CMD_KV_SEP.charAt(0);
+	// What US-ASCII encoding turns a character outside its range into
+	private static final byte UNMAPPABLE = (byte) '?';
+	private static final int INITIAL_CAPACITY = 256;
+	// A buffer that grew beyond this is not held on to between commands
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+	private static final ThreadLocal<CommandEncoder> POOL = new ThreadLocal<CommandEncoder>() {
+		protected CommandEncoder initialValue() {
+			return new CommandEncoder();
+		}
+	};
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+
+	// The calling thread's encoder, emptied and ready for a new command
+	public static CommandEncoder get() {
+		CommandEncoder encoder = POOL.get();
+		encoder.reset();
+		return encoder;
+	}
+
+	// Pre-encode a key, along with its key-value separator
+	public static byte[] key(String name) {
+		byte[] key = new byte[name.length() + 1];
+		for (int i = 0; i < name.length(); i++) {
+			key[i] = encode(name.charAt(i));
+		}
+		key[name.length()] = KV_SEP;
+		return key;
+	}
+
+	public void reset() {
+		if (buffer.length > MAX_RETAINED_CAPACITY) {
+			buffer = new byte[INITIAL_CAPACITY];
+		}
+		length = 0;
+	}
+
+	public CommandEncoder put(byte[] key, String value) {
+		putKey(key);
+		if (value == null) {
+			// Same as what appending a null to a StringBuilder would do
+			value = "null";
+		}
+		int n = value.length();
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			byte b = encode(value.charAt(i));
+			// The terminator frames commands on the wire; see Utils
+			if (b != TERM) {
+				buffer[length++] = b;
+			}
+		}
+		return this;
+	}
+
+	public CommandEncoder put(byte[] key, int value) {
+		return put(key, Integer.toString(value));
+	}
+
+	// Terminate the command
+	public CommandEncoder end() {
+		ensureCapacity(1);
+		buffer[length++] = TERM;
+		return this;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, length);
+	}
+
+	public String toString() {
+		// US-ASCII maps each byte to the char with the same value
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) buffer[i];
+		}
+		return new String(chars);
+	}
+
+	private void putKey(byte[] key) {
+		ensureCapacity(key.length + 1);
+		if (length > 0) {
+			buffer[length++] = SEP;
+		}
+		System.arraycopy(key, 0, buffer, length, key.length);
+		length += key.length;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2,
+					length + extra));
+		}
+	}
+
+	private static byte encode(char c) {
+		return c < 0x80 ? (byte) c : UNMAPPABLE;
+	}
+
+}
@@ -0,0 +1,292 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+// Jetbrains
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Remembers the committers of a running build, as walking the VCS history
+// to find them is the most expensive part of handling an event and a build
+// raises several events. An entry is dropped when its build finishes, or
+// when it's older than the time to live, for builds whose finish we miss.
+//
+// The committers are found on a small pool of worker threads, so that a
+// build with a large change set doesn't hold up the TeamCity event thread:
+// the event thread waits for them for no longer than the budget, after
+// which it carries on without them and is called back once they are known.
+// When the pool is busy, they are found on the event thread, as before.
+public class CommitterCache {
+
+	// Internal property for the time to live of an entry (ms)
+	public static final String TTL_PROPERTY = Utils.PROPERTY_PREFIX + "committers.cacheTtl";
+	// Internal property for the number of threads finding committers; 0 finds them on the event thread
+	public static final String THREADS_PROPERTY = Utils.PROPERTY_PREFIX + "committers.threads";
+	// Internal property for the number of builds waiting for a thread
+	public static final String QUEUE_CAPACITY_PROPERTY = Utils.PROPERTY_PREFIX + "committers.queueCapacity";
+	// Internal property for the longest an event waits for the committers (ms)
+	public static final String BUDGET_PROPERTY = Utils.PROPERTY_PREFIX + "committers.budget";
+	// Default time to live of an entry (ms)
+	public static final long DEFAULT_TTL = 60 * 60 * 1000;
+	// Default number of threads finding committers
+	public static final int DEFAULT_THREADS = 4;
+	// Default number of builds waiting for a thread
+	public static final int DEFAULT_QUEUE_CAPACITY = 100;
+	// Default longest an event waits for the committers (ms)
+	public static final long DEFAULT_BUDGET = 200;
+	// Expired entries are only looked for once there are this many
+	private static final int PURGE_THRESHOLD = 1000;
+
+	// Called with the committers of a build that weren't found within the
+	// budget, on the thread that found them
+	public interface Callback {
+
+		void resolved(String committers);
+
+	}
+
+	private final long ttl;
+	private final long budget;
+	// Null when the committers are found on the event thread
+	private final ThreadPoolExecutor pool;
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+	// Committers are found on the event thread
+	public CommitterCache(long ttl) {
+		this(ttl, 0, 0, 0);
+	}
+
+	public CommitterCache(long ttl, int threads, int queueCapacity, long budget) {
+		this.ttl = ttl;
+		this.budget = budget;
+		if (threads <= 0 || budget <= 0) {
+			pool = null;
+			return;
+		}
+		pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, Utils.NAME
+								+ " committers " + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	// Create a cache configured from the TeamCity internal properties
+	public static CommitterCache create() {
+		return new CommitterCache(TeamCityProperties.getLong(TTL_PROPERTY,
+				DEFAULT_TTL), TeamCityProperties.getInteger(THREADS_PROPERTY,
+				DEFAULT_THREADS), TeamCityProperties.getInteger(
+				QUEUE_CAPACITY_PROPERTY, DEFAULT_QUEUE_CAPACITY),
+				TeamCityProperties.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET));
+	}
+
+	// The committers of the build as a CSV, resolved at most once per
+	// build, or null if they weren't found within the budget (see
+	// whenResolved)
+	public String get(SRunningBuild build) {
+		Long buildId = Long.valueOf(build.getBuildId());
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(buildId);
+		if (entry == null || now >= entry.expires) {
+			// Events of the same build may race; they share one lookup. It
+			// is started outside the lock, as it may run on this thread
+			Entry created = null;
+			synchronized (this) {
+				entry = entries.get(buildId);
+				if (entry == null || now >= entry.expires) {
+					if (entries.size() >= PURGE_THRESHOLD) {
+						purge(now);
+					}
+					created = new Entry(new Lookup(build), now + ttl);
+					entries.put(buildId, created);
+					entry = created;
+				}
+			}
+			if (created != null) {
+				start(created.lookup);
+			}
+		}
+		try {
+			if (entry.lookup.isDone() || pool == null) {
+				// Without a pool, a racing event waits as long as it takes
+				return entry.lookup.get();
+			}
+			return entry.lookup.get(budget, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			NotifierMetrics.get().committersLate();
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			// Not remembered, so that the next event tries again
+			entries.remove(buildId, entry);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	// Call back with the committers of the build once they are found, or
+	// right away if they are known; returns false if they aren't being
+	// looked for
+	public boolean whenResolved(SRunningBuild build, Callback callback) {
+		Entry entry = entries.get(Long.valueOf(build.getBuildId()));
+		if (entry == null) {
+			return false;
+		}
+		entry.lookup.whenDone(callback);
+		return true;
+	}
+
+	public void evict(SRunningBuild build) {
+		entries.remove(Long.valueOf(build.getBuildId()));
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	// Stop the worker threads; lookups under way are abandoned
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	private void start(Lookup lookup) {
+		if (pool != null) {
+			try {
+				pool.execute(lookup);
+				return;
+			} catch (RejectedExecutionException e) {
+				// Busy (or shut down), so the event thread finds them itself
+			}
+		}
+		lookup.run();
+	}
+
+	private void purge(long now) {
+		Iterator<Map.Entry<Long, Entry>> iter = entries.entrySet().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().getValue().expires <= now) {
+				iter.remove();
+			}
+		}
+	}
+
+	private static class Entry {
+
+		final Lookup lookup;
+		final long expires;
+
+		Entry(Lookup lookup, long expires) {
+			this.lookup = lookup;
+			this.expires = expires;
+		}
+
+	}
+
+	// Finding the committers of a build, which calls back those that
+	// stopped waiting for it when it's done
+	private static class Lookup extends FutureTask<String> {
+
+		private final List<Callback> callbacks = new LinkedList<Callback>();
+		private boolean called = false;
+
+		Lookup(final SRunningBuild build) {
+			super(new Callable<String>() {
+				public String call() {
+					long start = System.nanoTime();
+					String committers = Utils.getUsersThatCommittedToBuild(build);
+					NotifierMetrics.get().committersResolved(
+							System.nanoTime() - start);
+					return committers;
+				}
+			});
+		}
+
+		void whenDone(Callback callback) {
+			synchronized (callbacks) {
+				if (!called) {
+					callbacks.add(callback);
+					return;
+				}
+			}
+			call(callback);
+		}
+
+		protected void done() {
+			List<Callback> waiting;
+			synchronized (callbacks) {
+				called = true;
+				waiting = new LinkedList<Callback>(callbacks);
+				callbacks.clear();
+			}
+			for (Callback callback : waiting) {
+				call(callback);
+			}
+		}
+
+		private void call(Callback callback) {
+			String committers;
+			try {
+				committers = get();
+			} catch (Exception e) {
+				Utils.logWarn(Utils.LOGGER,
+						"Could not find the committers of a build: %1$s",
+						e.getMessage());
+				return;
+			}
+			try {
+				callback.resolved(committers);
+			} catch (RuntimeException e) {
+				Utils.logError(Utils.LOGGER,
+						"Could not send the committers of a build: %1$s",
+						e.getMessage());
+				Utils.logStackTrace(Utils.LOGGER, e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts durations in buckets that double in size, from under a
+// microsecond up, which is precise enough to tell where time goes at the
+// cost of a few atomic increments per recording. Percentiles are reported
+// as the upper bound of the bucket they fall in.
+public class LatencyHistogram {
+
+	// Bucket i holds durations below 2^i microseconds; the last one holds
+	// everything longer (over half an hour)
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		total.addAndGet(micros);
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	public Snapshot getSnapshot() {
+		long[] counts = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+		return new Snapshot(n, n == 0 ? 0 : total.get() / n, percentile(
+				counts, n, 0.5), percentile(counts, n, 0.99), max.get());
+	}
+
+	private static long percentile(long[] counts, long n, double fraction) {
+		long rank = (long) Math.ceil(n * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return 1L << i;
+			}
+		}
+		return 0;
+	}
+
+	// The durations recorded so far, in microseconds
+	public static class Snapshot {
+
+		private final long count;
+		private final long mean;
+		private final long median;
+		private final long percentile99;
+		private final long max;
+
+		@ConstructorProperties({ "count", "mean", "median", "percentile99",
+				"max" })
+		public Snapshot(long count, long mean, long median, long percentile99,
+				long max) {
+			this.count = count;
+			this.mean = mean;
+			this.median = median;
+			this.percentile99 = percentile99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMean() {
+			return mean;
+		}
+
+		public long getMedian() {
+			return median;
+		}
+
+		public long getPercentile99() {
+			return percentile99;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public String toString() {
+			return String.format(
+					"count=%1$s mean=%2$sus p50<%3$sus p99<%4$sus max=%5$sus",
+					count, mean, median, percentile99, max);
+		}
+
+	}
+
+}
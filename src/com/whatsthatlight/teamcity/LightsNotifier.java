@@ -22,6 +22,7 @@ import jetbrains.buildServer.notification.Notificator;
 import jetbrains.buildServer.notification.NotificatorRegistry;
 import jetbrains.buildServer.responsibility.TestNameResponsibilityEntry;
 import jetbrains.buildServer.responsibility.ResponsibilityEntry;
+import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SRunningBuild;
@@ -32,12 +33,47 @@ import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.vcs.VcsRoot;
 // Java
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 public class LightsNotifier implements Notificator {
 
+	// Queues commands so that the event threads never wait on the network
+	private final NotificationDispatcher dispatcher;
+	// Committers of running builds, so that they're resolved once per build
+	private final CommitterCache committerCache = CommitterCache.create();
+	// The latest state of every build configuration, for servers that
+	// (re)connect
+	private final BuildStateSnapshot snapshot = BuildStateSnapshot.get();
+	// Held while a build state is remembered and queued, so that the two
+	// happen in the same order for every state of a build configuration;
+	// striped, so that different build configurations rarely contend
+	private final Object[] stateLocks = new Object[64];
+	// Tells the notification servers that TeamCity is up when it's quiet
+	private final NotificationHeartbeat heartbeat;
+
 	// Constructor
 	public LightsNotifier(NotificatorRegistry reg) {
+		for (int i = 0; i < stateLocks.length; i++) {
+			stateLocks[i] = new Object();
+		}
+		dispatcher = NotificationDispatcher.create(new NotificationSender() {
+			public void send(List<Notification> notifications) {
+				Utils.notifyHost(notifications);
+			}
+
+			public boolean isPending() {
+				return Utils.isSendPending();
+			}
+
+			public void spool(List<Notification> notifications) {
+				Utils.spool(notifications);
+			}
+		});
+		dispatcher.start();
+		NotifierMetrics.get().register(dispatcher);
+		heartbeat = NotificationHeartbeat.create(dispatcher);
+		heartbeat.start();
 		// Register the notifier in the TeamCity registry
 		reg.register(this);
 		String version = this.getClass().getPackage().getImplementationVersion();
@@ -45,6 +81,26 @@ public class LightsNotifier implements Notificator {
 		Utils.logInfo(Utils.LOGGER, logMessage);
 	}
 
+	// Constructor used by TeamCity, which also warms up from the build
+	// history
+	public LightsNotifier(NotificatorRegistry reg, ProjectManager projectManager) {
+		this(reg);
+		NotificationWarmUp.create(projectManager, snapshot, dispatcher).start();
+	}
+
+	// Called when the plugin is unloaded, e.g. as TeamCity shuts down; the
+	// notification servers are told right away, as the dispatcher's thread
+	// may not get to it
+	public void dispose() {
+		heartbeat.stop();
+		committerCache.shutdown();
+		dispatcher.shutdown();
+		NotifierMetrics.get().unregister();
+		Utils.notifyHost(Utils.createServerDownCommand());
+		Utils.shutdown();
+		Utils.logInfo(Utils.LOGGER, "%1$s unregistered", Utils.NAME);
+	}
+
 	// Notifier display name
 	public String getDisplayName() {
 		return Utils.NAME;
@@ -168,59 +224,117 @@ public class LightsNotifier implements Notificator {
 	}
 
 	// Build notification handler
-	private void handleBuildNotification(Integer notificationType,
+	private void handleBuildNotification(int notificationType,
 			SRunningBuild build, Set<SUser> users) {
+		long start = System.nanoTime();
+		NotifierMetrics.get().eventReceived(notificationType);
 		try {
 			// Extract fields required for processing
-			String projectId = build.getProjectId();
-			String buildConfigId = build.getBuildTypeId();
-			String buildConfigFullName = build.getFullName();
-			String notificationTypeName = NotificationType
-					.getName(notificationType);
-			String triggeredByUser = Utils.tryGetTriggeredByUser(build);
-			String committers = Utils.getUsersThatCommittedToBuild(build);
-			String recipients = Utils.mergeCsvs(triggeredByUser, committers);
+			final String projectId = build.getProjectId();
+			final String buildConfigId = build.getBuildTypeId();
+			final String triggeredByUser = Utils.tryGetTriggeredByUser(build);
 			// Now we change the user string (if null) to "nobody" so that we 
 			// can print it to the log. We don't want "nobody" sent on the
-			// wire, so we do it AFTER creating the recipient list. 
-			triggeredByUser = (triggeredByUser == null) ? "nobody"
+			// wire, so we only use it for the log. 
+			String loggedUser = (triggeredByUser == null) ? "nobody"
 					: triggeredByUser;
-			// Skip personal builds
+			// Skip personal builds, before looking for their committers
 			if (build.isPersonal()) {
-				String logMessage = String
-						.format("Ignoring personal build notification %1$s for %2$s triggered by %3$s",
-								notificationTypeName, buildConfigFullName,
-								triggeredByUser);
-				Utils.logInfo(Utils.LOGGER, logMessage);
+				Utils.logDebug(Utils.LOGGER,
+						"Ignoring personal build notification %1$s for %2$s triggered by %3$s",
+						NotificationType.getName(notificationType),
+						build.getFullName(), loggedUser);
 				return;
 			}
-			String logMessage = String
-					.format("Handling %1$s event for %2$s triggered by %3$s, with committers %4$s",
-							notificationTypeName, buildConfigFullName,
-							triggeredByUser, committers);
-			if (committers.isEmpty()) {
-				logMessage = String
-						.format("Handling %1$s event for %2$s triggered by %3$s, with no committers",
-								notificationTypeName, buildConfigFullName,
-								triggeredByUser);
+			String committers = committerCache.get(build);
+			boolean late = committers == null;
+			String recipients = Utils.mergeCsvs(triggeredByUser,
+					late ? "" : committers);
+			// Every event is only logged in verbose mode, so that nothing is
+			// looked up or formatted for it otherwise
+			if (Utils.isVerbose()) {
+				if (late) {
+					Utils.logDebug(Utils.LOGGER,
+							"Handling %1$s event for %2$s triggered by %3$s, before its committers are known",
+							NotificationType.getName(notificationType),
+							build.getFullName(), loggedUser);
+				} else if (committers.isEmpty()) {
+					Utils.logDebug(Utils.LOGGER,
+							"Handling %1$s event for %2$s triggered by %3$s, with no committers",
+							NotificationType.getName(notificationType),
+							build.getFullName(), loggedUser);
+				} else {
+					Utils.logDebug(Utils.LOGGER,
+							"Handling %1$s event for %2$s triggered by %3$s, with committers %4$s",
+							NotificationType.getName(notificationType),
+							build.getFullName(), loggedUser, committers);
+				}
 			}
-			Utils.logInfo(Utils.LOGGER, logMessage);
-			String command = Utils.createBuildNotificationCommand(
+			byte[] command = Utils.encodeBuildNotificationCommand(
 					notificationType, projectId, buildConfigId, recipients);
-			Utils.notifyHost(command);
+			final BuildStateSnapshot.BuildState state;
+			synchronized (stateLock(projectId, buildConfigId)) {
+				state = snapshot.update(notificationType, projectId,
+						buildConfigId, recipients);
+				dispatcher.dispatch(new Notification(notificationType,
+						projectId, buildConfigId, command));
+			}
+			// The committers took too long to find, so the event went out
+			// with just the user that triggered the build; it's sent again
+			// with all of them once they are found, unless a newer state
+			// has replaced it by then
+			if (late && state != null) {
+				committerCache.whenResolved(build,
+						new CommitterCache.Callback() {
+							public void resolved(String committers) {
+								sendRecipients(state, Utils.mergeCsvs(
+										triggeredByUser, committers));
+							}
+						});
+			}
+			if (NotificationType.isBuildFinished(notificationType)) {
+				committerCache.evict(build);
+			}
 		} catch (Exception e) {
-			Utils.logError(
-					Utils.LOGGER,
-					String.format("Could not handle event: %1$s",
-							e.getMessage()));
+			Utils.logError(Utils.LOGGER, "Could not handle event: %1$s",
+					e.getMessage());
 			Utils.logStackTrace(Utils.LOGGER, e);
+		} finally {
+			NotifierMetrics.get().handled(System.nanoTime() - start);
 		}
 	}
 
+	// Send a build state again with the recipients it should have had, if
+	// it's still the latest state of its build configuration
+	private void sendRecipients(BuildStateSnapshot.BuildState state,
+			String recipients) {
+		byte[] command = Utils.encodeBuildNotificationCommand(
+				state.getNotificationTypeId(), state.getProjectId(),
+				state.getBuildConfigId(), recipients);
+		// A newer state can't slip in between the check and the send
+		synchronized (stateLock(state.getProjectId(), state.getBuildConfigId())) {
+			if (snapshot.updateRecipients(state, recipients) == null) {
+				Utils.logDebug(Utils.LOGGER,
+						"Not sending the committers of %1$s, as it changed state since",
+						state.getBuildConfigId());
+				return;
+			}
+			dispatcher.dispatch(new Notification(state.getNotificationTypeId(),
+					state.getProjectId(), state.getBuildConfigId(), command));
+		}
+	}
+
+	private Object stateLock(String projectId, String buildConfigId) {
+		int hash = (projectId + "/" + buildConfigId).hashCode();
+		return stateLocks[(hash & 0x7fffffff) % stateLocks.length];
+	}
+
 	private void handleBuildResponsibilityAssignedNotification(
-			Integer notificationTypeId, SBuildType buildType) {
+			int notificationTypeId, SBuildType buildType) {
 		// TODO: Cancel previous person that was responsible
 		// TODO: Cancel if there's a successful build
+		long start = System.nanoTime();
+		NotifierMetrics.get().eventReceived(notificationTypeId);
 		try {
 			// Extract fields required for processing
 			String projectId = buildType.getProjectId();
@@ -234,22 +348,22 @@ public class LightsNotifier implements Notificator {
 					.getResponsibilityInfo().getState();
 			String reporter = buildType.getResponsibilityInfo()
 					.getReporterUser().getUsername();
-			String logMessage = String
-					.format("Handling %1$s event for %2$s: Responsibility set to %3$s for user %4$s by %5$s",
-							notificationTypeName, buildConfigFullName,
-							newState.toString(), newUsername, reporter);
-			Utils.logInfo(Utils.LOGGER, logMessage);
-			String command = Utils
-					.createResponsibilityAssignedNotificationCommand(
+			Utils.logInfo(Utils.LOGGER,
+					"Handling %1$s event for %2$s: Responsibility set to %3$s for user %4$s by %5$s",
+					notificationTypeName, buildConfigFullName, newState,
+					newUsername, reporter);
+			byte[] command = Utils
+					.encodeResponsibilityAssignedNotificationCommand(
 							notificationTypeId, projectId, buildConfigId,
 							newUsername, newState.toString());
-			Utils.notifyHost(command);
+			dispatcher.dispatch(new Notification(notificationTypeId,
+					projectId, buildConfigId, command));
 		} catch (Exception e) {
-			Utils.logError(
-					Utils.LOGGER,
-					String.format("Could not handle event: %1$s",
-							e.getMessage()));
+			Utils.logError(Utils.LOGGER, "Could not handle event: %1$s",
+					e.getMessage());
 			Utils.logStackTrace(Utils.LOGGER, e);
+		} finally {
+			NotifierMetrics.get().handled(System.nanoTime() - start);
 		}
 	}
 
@@ -0,0 +1,88 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.nio.charset.Charset;
+
+// A command on its way to the notification server, already encoded for the
+// wire, along with the fields the dispatcher needs to reason about it
+// without parsing the command
+public class Notification {
+
+	private static final Charset ENCODING = Charset
+			.forName(NotificationConnection.ENCODING);
+
+	private final int notificationTypeId;
+	private final String projectId;
+	private final String buildConfigId;
+	private final byte[] command;
+
+	public Notification(int notificationTypeId, String projectId,
+			String buildConfigId, byte[] command) {
+		this.notificationTypeId = notificationTypeId;
+		this.projectId = projectId;
+		this.buildConfigId = buildConfigId;
+		this.command = command;
+	}
+
+	public Notification(int notificationTypeId, String projectId,
+			String buildConfigId, String command) {
+		this(notificationTypeId, projectId, buildConfigId, command
+				.getBytes(ENCODING));
+	}
+
+	// A request that isn't about a build, e.g. the server-up command
+	public Notification(String command) {
+		this(NotificationType.NONE, null, null, command);
+	}
+
+	public int getNotificationTypeId() {
+		return notificationTypeId;
+	}
+
+	public String getProjectId() {
+		return projectId;
+	}
+
+	public String getBuildConfigId() {
+		return buildConfigId;
+	}
+
+	public String getCommand() {
+		return new String(command, ENCODING);
+	}
+
+	// The command as it goes on the wire; not to be modified
+	public byte[] getBytes() {
+		return command;
+	}
+
+	// Build states of the same build configuration supersede each other;
+	// anything else is never merged with another notification
+	public String getCoalescingKey() {
+		if (!NotificationType.isBuildState(notificationTypeId)) {
+			return null;
+		}
+		return projectId + "/" + buildConfigId;
+	}
+
+	public String toString() {
+		return getCommand();
+	}
+
+}
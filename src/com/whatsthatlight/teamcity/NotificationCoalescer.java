@@ -0,0 +1,104 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+// Holds notifications for a short window, during which a newer build state
+// of the same build configuration replaces the one that is waiting. A
+// notification is released no later than the window after the first one
+// for its build configuration arrived, so a stream of events can't starve
+// it. With a window of zero, only notifications that are waiting together
+// (i.e. when the sender is behind) are merged. Not thread-safe; it's only
+// used by the dispatcher's sender thread.
+public class NotificationCoalescer {
+
+	private final long window;
+	// Insertion order is arrival order, which is also due order
+	private final LinkedHashMap<Object, Pending> pending = new LinkedHashMap<Object, Pending>();
+	private volatile long coalesced = 0;
+
+	public NotificationCoalescer(long window) {
+		this.window = window;
+	}
+
+	public void add(Notification notification, long now) {
+		Object key = notification.getCoalescingKey();
+		if (key == null) {
+			key = new Object();
+		}
+		Pending existing = pending.get(key);
+		if (existing != null) {
+			existing.notification = notification;
+			coalesced++;
+		} else {
+			pending.put(key, new Pending(notification, now + window));
+		}
+	}
+
+	public boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	public int size() {
+		return pending.size();
+	}
+
+	// Time at which the next notification is due, or Long.MAX_VALUE if none
+	public long nextDue() {
+		if (pending.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		return pending.values().iterator().next().due;
+	}
+
+	public List<Notification> takeDue(long now) {
+		List<Notification> due = new LinkedList<Notification>();
+		Iterator<Pending> iter = pending.values().iterator();
+		while (iter.hasNext()) {
+			Pending p = iter.next();
+			if (p.due > now) {
+				break;
+			}
+			due.add(p.notification);
+			iter.remove();
+		}
+		return due;
+	}
+
+	// Number of notifications that were replaced by a newer one
+	public long getCoalescedCount() {
+		return coalesced;
+	}
+
+	private static class Pending {
+
+		Notification notification;
+		final long due;
+
+		Pending(Notification notification, long due) {
+			this.notification = notification;
+			this.due = due;
+		}
+
+	}
+
+}
@@ -0,0 +1,502 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// A connection to the notification server. Every command ends with the
+// command terminator, which is the only framing the server needs to split
+// the stream, so a server that can read a stream gets a connection that is
+// kept open between commands (and re-established when it breaks), and all
+// commands sent together go out as a single batch frame in one write.
+// Older servers expect exactly one command per connection; they get that.
+//
+// Which of the two a server is, is negotiated: on the first connection a
+// capabilities request is sent, which a streaming server answers. Silence
+// or a hang-up means an older server. The outcome is remembered until the
+// server can't be reached, as it may come back as a different version.
+// With negotiation disabled, the persistent flag decides. A streaming
+// server may also take the compact binary format (see BinaryCommandEncoder),
+// if we offer it and it says so in its answer.
+//
+// The connection never blocks: it is a state machine that a
+// NotificationFanOut drives from a selector, alongside the connections to
+// other servers, so that a slow server doesn't hold up the rest. Even the
+// host name is looked up on a thread of its own, once, and again only
+// after the connection failed, as the server may have moved.
+public class NotificationConnection {
+
+	// Encoding of the commands on the wire
+	public static final String ENCODING = "US-ASCII";
+	// What a streaming server answers to the capabilities request
+	private static final String BATCH_CAPABILITY = "batch=1";
+	// What a server that takes the binary format adds to its answer
+	private static final String BINARY_CAPABILITY = "binary=1";
+
+	private enum Phase {
+		// Nothing to send
+		IDLE,
+		// Waiting for the host name to be looked up
+		RESOLVING,
+		// Waiting for the server to accept the connection
+		CONNECTING,
+		// Waiting for the server to take what is being written
+		WRITING,
+		// Waiting for the server to answer the capabilities request
+		NEGOTIATING
+	}
+
+	private final String host;
+	private final int port;
+	private final int timeout;
+	private final int negotiationTimeout;
+	private final boolean offerBinary;
+	// Looks up host names, which may block for as long as DNS takes; null
+	// until it's needed
+	private static ExecutorService resolver;
+
+	// Whether the server reads a stream of commands; null when not known yet
+	private Boolean streaming;
+	// Whether the server takes the binary format
+	private boolean binary;
+	private final BinaryCommandEncoder encoder = new BinaryCommandEncoder();
+	// The address of the server; null until it's looked up
+	private InetSocketAddress address;
+	// The look-up under way, if any
+	private Future<InetSocketAddress> resolving;
+	private SocketChannel channel;
+	private SelectionKey key;
+	// The selector of the send under way
+	private Selector selector;
+	// Used by send() when the connection is used on its own
+	private NotificationFanOut standalone;
+	// The state of the commands being sent
+	private Phase phase = Phase.IDLE;
+	private final LinkedList<byte[]> remaining = new LinkedList<byte[]>();
+	private ByteBuffer out;
+	private final ByteBuffer in = ByteBuffer.allocate(64);
+	private final StringBuilder reply = new StringBuilder();
+	private long deadline;
+	// Whether the channel was kept from an earlier send; it may have gone
+	// stale without us noticing, so a failure on it is worth one retry
+	private boolean reused;
+
+	// The timeout applies to connecting and to each write making progress; a
+	// negotiation timeout of zero disables negotiation
+	public NotificationConnection(String host, int port, int timeout,
+			boolean persistent, int negotiationTimeout) {
+		this(host, port, timeout, persistent, negotiationTimeout, false);
+	}
+
+	// Offering the binary format only has an effect with negotiation
+	public NotificationConnection(String host, int port, int timeout,
+			boolean persistent, int negotiationTimeout, boolean offerBinary) {
+		this.host = host;
+		this.port = port;
+		this.timeout = timeout;
+		this.negotiationTimeout = negotiationTimeout;
+		this.offerBinary = offerBinary;
+		this.streaming = isNegotiating() ? null : Boolean.valueOf(persistent);
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void send(String command) throws IOException {
+		send(Collections.singletonList(command.getBytes(ENCODING)));
+	}
+
+	// Send encoded commands on this connection alone, waiting until they are
+	// written
+	public synchronized void send(List<byte[]> commands) throws IOException {
+		if (standalone == null) {
+			standalone = new NotificationFanOut();
+		}
+		standalone.send(this, commands);
+	}
+
+	public boolean isConnected() {
+		return channel != null;
+	}
+
+	// Whether the server takes batch frames; null when not negotiated yet
+	public Boolean isStreaming() {
+		return streaming;
+	}
+
+	// Whether the server takes the binary format
+	public boolean isBinary() {
+		return binary;
+	}
+
+	// Whether the next send goes out on a new connection, e.g. as the server
+	// hung up since the last one, so that it may not have heard from us
+	// before
+	public boolean willReconnect() {
+		if (channel != null && phase == Phase.IDLE && isClosedByPeer()) {
+			close();
+		}
+		return channel == null;
+	}
+
+	// Let the threads that look up host names go, e.g. as the plugin is
+	// unloaded; look-ups under way are finished, and the threads are
+	// started again if needed
+	public static synchronized void shutdownResolver() {
+		if (resolver != null) {
+			resolver.shutdown();
+			resolver = null;
+		}
+	}
+
+	public void close() {
+		if (channel != null) {
+			try {
+				// Closing the channel cancels its keys in every selector
+				channel.close();
+			} catch (IOException e) {
+				// Nothing more to be done with a broken channel
+			}
+		}
+		channel = null;
+		key = null;
+	}
+
+	public String toString() {
+		return host + ":" + port;
+	}
+
+	// Start sending the commands; the selector reports when the connection
+	// can make progress, for handleReady() to carry on
+	void start(List<byte[]> commands, Selector selector, long now)
+			throws IOException {
+		this.selector = selector;
+		remaining.clear();
+		remaining.addAll(commands);
+		phase = Phase.IDLE;
+		if (channel != null && isClosedByPeer()) {
+			close();
+		}
+		reused = channel != null;
+		if (channel != null) {
+			key = channel.keyFor(selector);
+			if (key == null) {
+				key = channel.register(selector, 0, this);
+			}
+		}
+		try {
+			proceed(selector, now);
+		} catch (IOException e) {
+			recover(selector, now, e);
+		}
+	}
+
+	boolean isDone() {
+		return phase == Phase.IDLE;
+	}
+
+	// When the connection gives up waiting for the server
+	long getDeadline() {
+		return deadline;
+	}
+
+	// The server is ready for whatever we're waiting on
+	void handleReady(long now) throws IOException {
+		Selector selector = key.selector();
+		try {
+			switch (phase) {
+			case CONNECTING:
+				if (channel.finishConnect()) {
+					proceed(selector, now);
+				}
+				break;
+			case WRITING:
+				if (channel.write(out) > 0) {
+					deadline = now + timeout;
+				}
+				if (!out.hasRemaining()) {
+					written(selector, now);
+				}
+				break;
+			case NEGOTIATING:
+				negotiate(selector, now);
+				break;
+			default:
+				break;
+			}
+		} catch (IOException e) {
+			recover(selector, now, e);
+		}
+	}
+
+	// Carry on if the host name was looked up meanwhile
+	void poll(long now) throws IOException {
+		if (phase != Phase.RESOLVING || !resolving.isDone()) {
+			return;
+		}
+		try {
+			proceed(selector, now);
+		} catch (IOException e) {
+			recover(selector, now, e);
+		}
+	}
+
+	// The server hasn't been ready in time
+	void handleTimeout(long now) throws IOException {
+		if (phase == Phase.NEGOTIATING) {
+			// Silence means an older server
+			streaming = Boolean.FALSE;
+			close();
+			try {
+				proceed(selector, now);
+			} catch (IOException e) {
+				recover(selector, now, e);
+			}
+			return;
+		}
+		recover(selector, now, new SocketTimeoutException(String.format(
+				"Timed out after %1$s ms", timeout)));
+	}
+
+	private boolean isNegotiating() {
+		return negotiationTimeout > 0;
+	}
+
+	// Take the next step towards getting the remaining commands written
+	private void proceed(Selector selector, long now) throws IOException {
+		if (remaining.isEmpty()) {
+			phase = Phase.IDLE;
+			if (key != null) {
+				key.interestOps(0);
+			}
+			return;
+		}
+		if (channel == null) {
+			open(selector, now);
+			return;
+		}
+		if (streaming == null) {
+			out = ByteBuffer.wrap(Utils.createCapabilitiesCommand(offerBinary)
+					.getBytes(ENCODING));
+		} else if (streaming.booleanValue()) {
+			// The commands are gathered in one buffer and leave as one frame
+			List<byte[]> frames = remaining;
+			if (binary) {
+				frames = new LinkedList<byte[]>();
+				for (byte[] command : remaining) {
+					frames.add(encoder.encode(command));
+				}
+			}
+			int length = 0;
+			for (byte[] frame : frames) {
+				length += frame.length;
+			}
+			out = ByteBuffer.allocate(length);
+			for (byte[] frame : frames) {
+				out.put(frame);
+			}
+			out.flip();
+		} else {
+			out = ByteBuffer.wrap(remaining.getFirst());
+		}
+		phase = Phase.WRITING;
+		deadline = now + timeout;
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	private void written(Selector selector, long now) throws IOException {
+		if (streaming == null) {
+			phase = Phase.NEGOTIATING;
+			reply.setLength(0);
+			deadline = now + negotiationTimeout;
+			key.interestOps(SelectionKey.OP_READ);
+		} else if (streaming.booleanValue()) {
+			remaining.clear();
+			proceed(selector, now);
+		} else {
+			// An older server is done with the connection after one command
+			remaining.removeFirst();
+			close();
+			proceed(selector, now);
+		}
+	}
+
+	private void negotiate(Selector selector, long now) throws IOException {
+		in.clear();
+		int n = channel.read(in);
+		if (n < 0) {
+			// A hang-up means an older server
+			streaming = Boolean.FALSE;
+			close();
+			proceed(selector, now);
+			return;
+		}
+		in.flip();
+		while (in.hasRemaining()) {
+			char c = (char) in.get();
+			if (c == Utils.CMD_TERM.charAt(0)) {
+				List<String> capabilities = Arrays.asList(reply.toString()
+						.split(Utils.CMD_SEP));
+				streaming = Boolean.valueOf(capabilities
+						.contains(BATCH_CAPABILITY));
+				binary = offerBinary && streaming.booleanValue()
+						&& capabilities.contains(BINARY_CAPABILITY);
+				if (!streaming.booleanValue()) {
+					close();
+				}
+				proceed(selector, now);
+				return;
+			}
+			reply.append(c);
+		}
+	}
+
+	private void open(final Selector selector, long now) throws IOException {
+		if (address == null) {
+			if (resolving == null) {
+				resolving = getResolver().submit(new Callable<InetSocketAddress>() {
+					public InetSocketAddress call() {
+						try {
+							return new InetSocketAddress(host, port);
+						} finally {
+							selector.wakeup();
+						}
+					}
+				});
+			}
+			if (!resolving.isDone()) {
+				phase = Phase.RESOLVING;
+				deadline = now + timeout;
+				return;
+			}
+			InetSocketAddress resolved;
+			try {
+				resolved = resolving.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UnknownHostException(host);
+			} catch (ExecutionException e) {
+				throw new UnknownHostException(host);
+			} finally {
+				resolving = null;
+			}
+			if (resolved.isUnresolved()) {
+				throw new UnknownHostException(host);
+			}
+			address = resolved;
+		}
+		SocketChannel c = SocketChannel.open();
+		try {
+			c.configureBlocking(false);
+			c.socket().setTcpNoDelay(true);
+			c.socket().setKeepAlive(true);
+			key = c.register(selector, 0, this);
+			channel = c;
+			reused = false;
+			// Handles from an earlier connection mean nothing on this one
+			encoder.reset();
+			if (c.connect(address)) {
+				proceed(selector, now);
+			} else {
+				phase = Phase.CONNECTING;
+				deadline = now + timeout;
+				key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException e) {
+			if (channel != c) {
+				c.close();
+			}
+			throw e;
+		}
+	}
+
+	// A channel we held on to may have been dropped by the server; one fresh
+	// attempt is made before giving up
+	private void recover(Selector selector, long now, IOException e)
+			throws IOException {
+		close();
+		if (!reused && phase != Phase.RESOLVING) {
+			// A new connection failed; the server may have moved
+			address = null;
+		}
+		if (reused) {
+			reused = false;
+			try {
+				proceed(selector, now);
+				return;
+			} catch (IOException retry) {
+				close();
+				e = retry;
+			}
+		}
+		phase = Phase.IDLE;
+		if (isNegotiating()) {
+			streaming = null;
+			binary = false;
+		}
+		throw e;
+	}
+
+	private static synchronized ExecutorService getResolver() {
+		if (resolver == null) {
+			resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, Utils.NAME
+							+ " resolver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return resolver;
+	}
+
+	// After negotiation, the server never writes to us, so the only thing a
+	// read can return is the end of the stream, i.e. the server hung up
+	private boolean isClosedByPeer() {
+		try {
+			in.clear();
+			return channel.read(in) < 0;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+}
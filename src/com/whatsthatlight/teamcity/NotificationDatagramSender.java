@@ -0,0 +1,148 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Sends commands to a notification server, or to every light controller
+// in a multicast group, as UDP datagrams, so there is no connection to set
+// up or keep. Each command is prefixed with a sequence number, e.g.
+// sequence=42;notificationtypeid=...!, so that a receiver can tell when
+// datagrams were lost or arrived out of order; it starts at 1 whenever
+// TeamCity starts. As many commands as fit go in one datagram.
+public class NotificationDatagramSender {
+
+	// Key of the sequence number
+	private static final String KEY_SEQUENCE = "sequence" + Utils.CMD_KV_SEP;
+
+	private final String host;
+	private final int port;
+	private final int timeToLive;
+	private final ByteBuffer packet;
+	private MulticastSocket socket;
+	private InetSocketAddress address;
+	private long sequence = 0;
+
+	// The time-to-live only matters to multicast groups; 1 keeps the
+	// datagrams on the local network
+	public NotificationDatagramSender(String host, int port, int timeToLive,
+			int maxPacketSize) {
+		this.host = host;
+		this.port = port;
+		this.timeToLive = timeToLive;
+		this.packet = ByteBuffer.allocate(maxPacketSize);
+	}
+
+	public synchronized void send(List<byte[]> commands) throws IOException {
+		ensureOpen();
+		packet.clear();
+		for (byte[] command : commands) {
+			byte[] prefix = prefix(++sequence);
+			int length = prefix.length + command.length;
+			if (packet.position() > 0 && length > packet.remaining()) {
+				flush();
+			}
+			if (length > packet.capacity()) {
+				// Too big to share a datagram with anything; it goes alone
+				// and the network will have to fragment it
+				byte[] whole = new byte[length];
+				System.arraycopy(prefix, 0, whole, 0, prefix.length);
+				System.arraycopy(command, 0, whole, prefix.length,
+						command.length);
+				try {
+					socket.send(new DatagramPacket(whole, length, address));
+				} catch (IOException e) {
+					close();
+					throw e;
+				}
+				continue;
+			}
+			packet.put(prefix);
+			packet.put(command);
+		}
+		flush();
+	}
+
+	// The sequence number of the last command sent
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	public synchronized void close() {
+		if (socket != null) {
+			socket.close();
+		}
+		socket = null;
+	}
+
+	public String toString() {
+		return NotificationEndpoint.DATAGRAM_SCHEME + host + ":" + port;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (socket != null) {
+			return;
+		}
+		// Resolved when the socket is opened, i.e. again only after a send
+		// failed; as there is no connection to fail, a changed address goes
+		// unnoticed until then
+		InetSocketAddress resolved = new InetSocketAddress(host, port);
+		if (resolved.isUnresolved()) {
+			throw new UnknownHostException(host);
+		}
+		MulticastSocket s = new MulticastSocket();
+		try {
+			s.setTimeToLive(timeToLive);
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		address = resolved;
+		socket = s;
+	}
+
+	private void flush() throws IOException {
+		if (packet.position() == 0) {
+			return;
+		}
+		try {
+			socket.send(new DatagramPacket(packet.array(), packet.position(),
+					address));
+		} catch (IOException e) {
+			// Start afresh next time, e.g. after the network came back
+			close();
+			throw e;
+		} finally {
+			packet.clear();
+		}
+	}
+
+	private static byte[] prefix(long sequence)
+			throws UnsupportedEncodingException {
+		return (KEY_SEQUENCE + sequence + Utils.CMD_SEP)
+				.getBytes(NotificationConnection.ENCODING);
+	}
+
+}
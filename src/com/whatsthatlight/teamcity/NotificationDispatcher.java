@@ -0,0 +1,332 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Decouples the TeamCity event threads from the notification server:
+// commands are put on a bounded queue and a single sender thread delivers
+// them in order. A single thread is used on purpose, so that the lights
+// never see the states of a build out of order. Before sending, the sender
+// thread coalesces superseded build states (see NotificationCoalescer),
+// holds back build configurations that change state too often (see
+// NotificationRateLimiter), and then hands the commands to the sender in
+// batches, bounded by a maximum size and by how long the first command of
+// a batch may linger. When more commands are ready than fit in a batch,
+// failures go first (see NotificationLanes).
+public class NotificationDispatcher {
+
+	// What to do with a command when the queue is full
+	public enum OverflowPolicy {
+		// Discard the command being dispatched
+		DROP_NEWEST,
+		// Discard the command at the head of the queue to make space
+		DROP_OLDEST,
+		// Wait for space (this will block the TeamCity event thread)
+		BLOCK
+	}
+
+	// Internal property for the queue capacity
+	public static final String CAPACITY_PROPERTY = Utils.PROPERTY_PREFIX + "queue.capacity";
+	// Internal property for the overflow policy
+	public static final String OVERFLOW_POLICY_PROPERTY = Utils.PROPERTY_PREFIX + "queue.overflowPolicy";
+	// Internal property for the coalescing window (ms)
+	public static final String COALESCE_WINDOW_PROPERTY = Utils.PROPERTY_PREFIX + "coalesce.window";
+	// Internal property for the maximum number of commands in a batch
+	public static final String BATCH_SIZE_PROPERTY = Utils.PROPERTY_PREFIX + "batch.maxCommands";
+	// Internal property for how long a batch waits to fill up (ms)
+	public static final String BATCH_LINGER_PROPERTY = Utils.PROPERTY_PREFIX + "batch.linger";
+	// Internal property for how long a command may be overtaken by more
+	// urgent ones (ms)
+	public static final String LANE_MAX_WAIT_PROPERTY = Utils.PROPERTY_PREFIX + "lanes.maxWait";
+	// Default queue capacity
+	public static final int DEFAULT_CAPACITY = 1000;
+	// Default overflow policy; the newest state is what the lights must show
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+	// Default coalescing window; only merge what is already waiting
+	public static final long DEFAULT_COALESCE_WINDOW = 0;
+	// Default maximum number of commands in a batch
+	public static final int DEFAULT_BATCH_SIZE = 50;
+	// Default batch linger time; send whatever is due right away
+	public static final long DEFAULT_BATCH_LINGER = 0;
+	// Default time a command may be overtaken
+	public static final long DEFAULT_LANE_MAX_WAIT = 2000;
+	// How often sends that are still under way are given a chance to finish
+	// when nothing else is to be sent (ms)
+	private static final long PENDING_INTERVAL = 50;
+	// How long shutdown() waits for a send under way to finish (ms)
+	private static final long SHUTDOWN_TIMEOUT = 2000;
+	// Put on the queue to wake the sender thread up; never sent
+	private static final Notification WAKE_UP = new Notification("");
+
+	private final BlockingQueue<Notification> queue;
+	private final OverflowPolicy overflowPolicy;
+	private final NotificationSender sender;
+	private NotificationCoalescer coalescer = new NotificationCoalescer(DEFAULT_COALESCE_WINDOW);
+	private int batchSize = 1;
+	private long batchLinger = DEFAULT_BATCH_LINGER;
+	private NotificationLanes lanes = new NotificationLanes(DEFAULT_LANE_MAX_WAIT);
+	private NotificationRateLimiter rateLimiter = NotificationRateLimiter.unlimited();
+	private final Thread worker;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean running = false;
+
+	public NotificationDispatcher(int capacity, OverflowPolicy overflowPolicy,
+			NotificationSender sender) {
+		this.queue = new ArrayBlockingQueue<Notification>(capacity);
+		this.overflowPolicy = overflowPolicy;
+		this.sender = sender;
+		this.worker = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, Utils.NAME + " dispatcher");
+		this.worker.setDaemon(true);
+	}
+
+	// Create a dispatcher configured from the TeamCity internal properties
+	public static NotificationDispatcher create(NotificationSender sender) {
+		int capacity = TeamCityProperties.getInteger(CAPACITY_PROPERTY,
+				DEFAULT_CAPACITY);
+		if (capacity <= 0) {
+			capacity = DEFAULT_CAPACITY;
+		}
+		OverflowPolicy policy = DEFAULT_OVERFLOW_POLICY;
+		String policyName = TeamCityProperties.getProperty(
+				OVERFLOW_POLICY_PROPERTY, DEFAULT_OVERFLOW_POLICY.name());
+		try {
+			policy = OverflowPolicy.valueOf(policyName.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Utils.logWarn(Utils.LOGGER,
+					"Unknown overflow policy %1$s, using %2$s", policyName,
+					DEFAULT_OVERFLOW_POLICY);
+		}
+		NotificationDispatcher dispatcher = new NotificationDispatcher(
+				capacity, policy, sender);
+		dispatcher.setCoalesceWindow(TeamCityProperties.getLong(
+				COALESCE_WINDOW_PROPERTY, DEFAULT_COALESCE_WINDOW));
+		dispatcher.setBatching(TeamCityProperties.getInteger(
+				BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE), TeamCityProperties
+				.getLong(BATCH_LINGER_PROPERTY, DEFAULT_BATCH_LINGER));
+		dispatcher.setLaneMaxWait(TeamCityProperties.getLong(
+				LANE_MAX_WAIT_PROPERTY, DEFAULT_LANE_MAX_WAIT));
+		dispatcher.setRateLimiter(NotificationRateLimiter.create());
+		return dispatcher;
+	}
+
+	// The stages below must be configured before the dispatcher is started
+
+	public void setCoalesceWindow(long window) {
+		coalescer = new NotificationCoalescer(Math.max(0, window));
+	}
+
+	public void setBatching(int size, long linger) {
+		batchSize = Math.max(1, size);
+		batchLinger = Math.max(0, linger);
+	}
+
+	public void setLaneMaxWait(long maxWait) {
+		lanes = new NotificationLanes(Math.max(0, maxWait));
+	}
+
+	public void setRateLimiter(NotificationRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public synchronized void start() {
+		if (!running) {
+			running = true;
+			worker.start();
+		}
+	}
+
+	// Stop the sender thread once it's done with the send under way, if
+	// any. It isn't interrupted, as a send can't be given up halfway; it's
+	// woken up if it's waiting for commands. What it didn't get to send is
+	// handed to the sender to spool.
+	public void shutdown() {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+		}
+		queue.offer(WAKE_UP);
+		if (Thread.currentThread() == worker) {
+			return;
+		}
+		try {
+			worker.join(SHUTDOWN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Queue a notification for delivery; returns false if it was discarded
+	public boolean dispatch(Notification notification) {
+		switch (overflowPolicy) {
+		case BLOCK:
+			try {
+				queue.put(notification);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return drop(notification);
+			}
+		case DROP_OLDEST:
+			while (!queue.offer(notification)) {
+				Notification oldest = queue.poll();
+				// The wake-up isn't a command; what takes its place wakes
+				// the sender thread up just as well
+				if (oldest != null && oldest != WAKE_UP) {
+					drop(oldest);
+				}
+			}
+			return true;
+		default:
+			return queue.offer(notification) || drop(notification);
+		}
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescer.getCoalescedCount() + lanes.getReplacedCount()
+				+ rateLimiter.getReplacedCount();
+	}
+
+	public long getThrottledCount() {
+		return rateLimiter.getThrottledCount();
+	}
+
+	private boolean drop(Notification notification) {
+		dropped.incrementAndGet();
+		Utils.logWarn(Utils.LOGGER,
+				"Notification queue full, dropping command %1$s", notification);
+		return false;
+	}
+
+	private void drain() {
+		List<Notification> arrived = new LinkedList<Notification>();
+		long batchDeadline = Long.MAX_VALUE;
+		while (running) {
+			try {
+				long wake = Math.min(Math.min(coalescer.nextDue(), rateLimiter
+						.nextDue(System.currentTimeMillis())), batchDeadline);
+				if (lanes.size() >= batchSize) {
+					// A full batch is ready; only pick up what has arrived
+					wake = 0;
+				} else if (sender.isPending()) {
+					wake = Math.min(wake, System.currentTimeMillis()
+							+ PENDING_INTERVAL);
+				}
+				if (wake == Long.MAX_VALUE) {
+					arrived.add(queue.take());
+				} else {
+					long wait = wake - System.currentTimeMillis();
+					if (wait > 0) {
+						Notification n = queue.poll(wait, TimeUnit.MILLISECONDS);
+						if (n != null) {
+							arrived.add(n);
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (!running) {
+				break;
+			}
+			queue.drainTo(arrived);
+			long now = System.currentTimeMillis();
+			for (Notification n : arrived) {
+				if (n != WAKE_UP) {
+					coalescer.add(n, now);
+				}
+			}
+			arrived.clear();
+			List<Notification> due = rateLimiter.admit(coalescer.takeDue(now),
+					now);
+			if (lanes.isEmpty() && !due.isEmpty()) {
+				batchDeadline = now + batchLinger;
+			}
+			for (Notification n : due) {
+				lanes.add(n, now);
+			}
+			// One batch at a time, so that whatever arrives while it's being
+			// sent can overtake the rest if it's more urgent
+			if (lanes.size() >= batchSize
+					|| (!lanes.isEmpty() && now >= batchDeadline)) {
+				send(lanes.take(batchSize, now));
+			} else if (sender.isPending()) {
+				send(Collections.<Notification> emptyList());
+			}
+			if (lanes.isEmpty()) {
+				batchDeadline = Long.MAX_VALUE;
+			}
+		}
+		spoolRemaining(arrived);
+	}
+
+	// Everything still in the stages and on the queue, oldest first
+	private void spoolRemaining(List<Notification> arrived) {
+		queue.drainTo(arrived);
+		List<Notification> remaining = lanes.take(lanes.size(), System
+				.currentTimeMillis());
+		remaining.addAll(rateLimiter.takeHeld());
+		remaining.addAll(coalescer.takeDue(Long.MAX_VALUE));
+		for (Notification n : arrived) {
+			if (n != WAKE_UP) {
+				remaining.add(n);
+			}
+		}
+		if (remaining.isEmpty()) {
+			return;
+		}
+		try {
+			sender.spool(remaining);
+		} catch (Exception e) {
+			Utils.logWarn(Utils.LOGGER, "Could not spool commands %1$s: %2$s",
+					remaining, e.getMessage());
+		}
+	}
+
+	private void send(List<Notification> notifications) {
+		try {
+			sender.send(notifications);
+		} catch (Exception e) {
+			Utils.logWarn(Utils.LOGGER, "Could not send commands %1$s: %2$s",
+					notifications, e.getMessage());
+		}
+	}
+
+}
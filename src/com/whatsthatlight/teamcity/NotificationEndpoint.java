@@ -0,0 +1,384 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// A notification server, with everything that's kept per server: the
+// connection to it (or the datagram sender), the circuit breaker that
+// stops us from trying it while it's down, and the spool that keeps what
+// it missed meanwhile
+public class NotificationEndpoint {
+
+	// Internal property for the notification servers, as a comma separated
+	// list of host:port, or udp://host:port for datagrams
+	public static final String ENDPOINTS_PROPERTY = Utils.PROPERTY_PREFIX + "endpoints";
+	// Internal property to disable keeping the connection open between
+	// commands when negotiation is disabled
+	public static final String PERSISTENT_CONNECTION_PROPERTY = Utils.PROPERTY_PREFIX + "connection.persistent";
+	// Internal property for the connect and write timeout (ms)
+	public static final String CONNECT_TIMEOUT_PROPERTY = Utils.PROPERTY_PREFIX + "connection.timeout";
+	// Internal property for how long to wait for the server to answer the
+	// capabilities request (ms); 0 disables negotiation
+	public static final String NEGOTIATION_TIMEOUT_PROPERTY = Utils.PROPERTY_PREFIX + "connection.negotiationTimeout";
+	// Internal property to stop offering the binary format during negotiation
+	public static final String BINARY_PROPERTY = Utils.PROPERTY_PREFIX + "connection.binary";
+	// Internal property for the time-to-live of multicast datagrams
+	public static final String TIME_TO_LIVE_PROPERTY = Utils.PROPERTY_PREFIX + "datagram.timeToLive";
+	// Internal property for the largest datagram to send (bytes)
+	public static final String MAX_PACKET_SIZE_PROPERTY = Utils.PROPERTY_PREFIX + "datagram.maxPacketSize";
+	// Prefix of the endpoints to send datagrams to
+	public static final String DATAGRAM_SCHEME = "udp://";
+	// Default notification server
+	public static final String DEFAULT_ENDPOINTS = Utils.HOST + ":" + Utils.PORT;
+	// Default connect and write timeout (ms)
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	// Default negotiation timeout (ms)
+	public static final int DEFAULT_NEGOTIATION_TIMEOUT = 1000;
+	// Default time-to-live of multicast datagrams, i.e. the local network
+	public static final int DEFAULT_TIME_TO_LIVE = 1;
+	// Default largest datagram, which fits in an Ethernet frame (bytes)
+	public static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+
+	private final String host;
+	private final int port;
+	// Null for a datagram endpoint
+	private final NotificationConnection connection;
+	// Null for a connection endpoint
+	private final NotificationDatagramSender datagrams;
+	private final CircuitBreaker breaker;
+	// Null if spooling is disabled
+	private final NotificationSpool spool;
+	// Whether the spooled notifications went out with the current send
+	private boolean replaying;
+	// The states to bring the server up to date with when it (re)connects;
+	// null if it isn't to be
+	private BuildStateSnapshot snapshot;
+	// Which servers hear about which project, so that the snapshot only
+	// holds the projects that are routed here; null if every project is
+	private NotificationRouter<NotificationEndpoint> router;
+	// Whether the server must be brought up to date, e.g. as it may have
+	// missed something while it was unreachable
+	private volatile boolean resync = true;
+	// Whether the snapshot went out with the current send
+	private boolean resyncing;
+	// What came in while a send to the server was under way, by what it
+	// supersedes, so that a slow server gets the latest of everything once
+	// it's done rather than a growing backlog
+	private final LinkedHashMap<Object, Notification> held = new LinkedHashMap<Object, Notification>();
+	// When commands were last delivered to the server
+	private volatile long lastDeliveredAt = 0;
+
+	public NotificationEndpoint(NotificationConnection connection,
+			CircuitBreaker breaker, NotificationSpool spool) {
+		this.host = connection.getHost();
+		this.port = connection.getPort();
+		this.connection = connection;
+		this.datagrams = null;
+		this.breaker = breaker;
+		this.spool = spool;
+	}
+
+	public NotificationEndpoint(String host, int port,
+			NotificationDatagramSender datagrams, CircuitBreaker breaker,
+			NotificationSpool spool) {
+		this.host = host;
+		this.port = port;
+		this.connection = null;
+		this.datagrams = datagrams;
+		this.breaker = breaker;
+		this.spool = spool;
+	}
+
+	// Create the endpoints configured in the TeamCity internal properties
+	public static List<NotificationEndpoint> create() {
+		int timeout = TeamCityProperties.getInteger(CONNECT_TIMEOUT_PROPERTY,
+				DEFAULT_CONNECT_TIMEOUT);
+		boolean persistent = TeamCityProperties
+				.getBooleanOrTrue(PERSISTENT_CONNECTION_PROPERTY);
+		int negotiationTimeout = TeamCityProperties.getInteger(
+				NEGOTIATION_TIMEOUT_PROPERTY, DEFAULT_NEGOTIATION_TIMEOUT);
+		boolean binary = TeamCityProperties.getBooleanOrTrue(BINARY_PROPERTY);
+		int timeToLive = TeamCityProperties.getInteger(TIME_TO_LIVE_PROPERTY,
+				DEFAULT_TIME_TO_LIVE);
+		int maxPacketSize = TeamCityProperties.getInteger(
+				MAX_PACKET_SIZE_PROPERTY, DEFAULT_MAX_PACKET_SIZE);
+		List<NotificationEndpoint> endpoints = new ArrayList<NotificationEndpoint>();
+		for (String address : TeamCityProperties.getProperty(
+				ENDPOINTS_PROPERTY, DEFAULT_ENDPOINTS).split(",")) {
+			address = address.trim();
+			if (address.isEmpty()) {
+				continue;
+			}
+			boolean datagram = address.startsWith(DATAGRAM_SCHEME);
+			String hostAndPort = datagram ? address.substring(DATAGRAM_SCHEME
+					.length()) : address;
+			String host = hostAndPort;
+			int port = Utils.PORT;
+			int colon = hostAndPort.lastIndexOf(':');
+			try {
+				if (colon >= 0) {
+					host = hostAndPort.substring(0, colon);
+					port = Integer.parseInt(hostAndPort.substring(colon + 1));
+				}
+			} catch (NumberFormatException e) {
+				Utils.logWarn(Utils.LOGGER,
+						"Ignoring endpoint %1$s: invalid port", address);
+				continue;
+			}
+			CircuitBreaker breaker = CircuitBreaker.create(String.format(
+					"Host %1$s on port %2$s", host, port));
+			if (datagram) {
+				endpoints.add(new NotificationEndpoint(host, port,
+						new NotificationDatagramSender(host, port, timeToLive,
+								maxPacketSize), breaker, NotificationSpool
+								.create("udp_" + host + "_" + port)));
+			} else {
+				endpoints.add(new NotificationEndpoint(new NotificationConnection(
+						host, port, timeout, persistent, negotiationTimeout,
+						binary),
+						breaker, NotificationSpool.create(host + "_" + port)));
+			}
+			endpoints.get(endpoints.size() - 1).setSnapshot(
+					BuildStateSnapshot.get());
+		}
+		return endpoints;
+	}
+
+	// How an address is spelled by toString(), i.e. with the port
+	public static String normalize(String address) {
+		address = address.trim();
+		int start = address.startsWith(DATAGRAM_SCHEME) ? DATAGRAM_SCHEME
+				.length() : 0;
+		if (address.indexOf(':', start) < 0) {
+			address += ":" + Utils.PORT;
+		}
+		return address;
+	}
+
+	// Bring a server that (re)connects up to date with the snapshot; a
+	// datagram endpoint never is, as the snapshot may not fit a datagram
+	// and there is no connection to tell when a receiver came up
+	public void setSnapshot(BuildStateSnapshot snapshot) {
+		this.snapshot = connection != null ? snapshot : null;
+	}
+
+	// Only bring the server up to date with the projects routed to it
+	public void setRouter(NotificationRouter<NotificationEndpoint> router) {
+		this.router = router;
+	}
+
+	// Bring the server up to date with the next send, e.g. as the snapshot
+	// was filled in
+	public void requestResync() {
+		resync = true;
+	}
+
+	// Keep notifications until the send under way is done
+	public void hold(List<Notification> notifications) {
+		for (Notification notification : notifications) {
+			Object key = notification.getCoalescingKey();
+			if (key == null) {
+				// The same request twice means no more than once
+				key = notification.getCommand();
+			}
+			// Re-insert, so that the latest state takes the latest place
+			held.remove(key);
+			held.put(key, notification);
+		}
+	}
+
+	public boolean hasHeld() {
+		return !held.isEmpty();
+	}
+
+	// What was held, followed by the notifications
+	public List<Notification> takeHeld(List<Notification> notifications) {
+		if (held.isEmpty()) {
+			return notifications;
+		}
+		hold(notifications);
+		List<Notification> all = new ArrayList<Notification>(held.values());
+		held.clear();
+		return all;
+	}
+
+	// Null for a datagram endpoint, which doesn't go through the fan-out
+	public NotificationConnection getConnection() {
+		return connection;
+	}
+
+	// Send to a datagram endpoint right away; sending a datagram doesn't wait
+	// for the receiver
+	public void sendDatagrams(List<byte[]> commands) throws IOException {
+		datagrams.send(commands);
+	}
+
+	// When commands were last delivered to the server (ms since the epoch),
+	// or zero if never
+	public long getLastDeliveredAt() {
+		return lastDeliveredAt;
+	}
+
+	// Whether the server is being sent to, backed off from, or probed
+	public CircuitBreaker.State getState() {
+		return breaker.getState();
+	}
+
+	// The commands to send to the server: what it missed while it was
+	// unreachable comes before anything newer. Null if the server is backed
+	// off from, in which case the notifications are spooled right away,
+	// rather than paying for a connect that is bound to fail. If the server
+	// is new to us, the snapshot comes last, as nothing before it is newer.
+	public List<byte[]> prepare(List<Notification> notifications, long now) {
+		replaying = false;
+		resyncing = false;
+		if (!breaker.allowRequest(now)) {
+			spool(notifications);
+			return null;
+		}
+		List<byte[]> commands = new LinkedList<byte[]>();
+		if (spool != null && !spool.isEmpty()) {
+			try {
+				List<Notification> spooled = spool.readAll();
+				Utils.logInfo(Utils.LOGGER,
+						"Replaying %1$s spooled notifications to %2$s",
+						spooled.size(), connection);
+				commands.addAll(encode(spooled));
+				replaying = true;
+			} catch (IOException e) {
+				Utils.logWarn(Utils.LOGGER,
+						"Unable to read the notification spool: %1$s",
+						e.getMessage());
+			}
+		}
+		commands.addAll(encode(notifications));
+		if (snapshot != null && needsResync()) {
+			List<BuildStateSnapshot.BuildState> states = routedStates();
+			if (!states.isEmpty()) {
+				Utils.logInfo(Utils.LOGGER,
+						"Sending the state of %1$s build configurations to %2$s",
+						states.size(), connection);
+				commands.add(Utils.encodeSnapshotCommand(states));
+			}
+			resyncing = true;
+		}
+		return commands;
+	}
+
+	// The commands from prepare() were delivered
+	public void delivered() {
+		lastDeliveredAt = System.currentTimeMillis();
+		breaker.recordSuccess();
+		if (replaying) {
+			spool.clear();
+		}
+		if (resyncing) {
+			resync = false;
+		}
+	}
+
+	// The commands from prepare() could not be delivered; what was spooled
+	// before stays spooled
+	public void failed(List<Notification> notifications, IOException e,
+			long now) {
+		breaker.recordFailure(now);
+		resync = true;
+		NotifierMetrics.get().connectionFailed();
+		Utils.logWarn(Utils.LOGGER,
+				"Unable to connect to host %1$s on port %2$s: %3$s", host, port,
+				e.getMessage());
+		spool(notifications);
+	}
+
+	private List<BuildStateSnapshot.BuildState> routedStates() {
+		List<BuildStateSnapshot.BuildState> states = snapshot.getStates();
+		if (router != null) {
+			for (Iterator<BuildStateSnapshot.BuildState> i = states.iterator(); i
+					.hasNext();) {
+				if (!router.route(i.next().getProjectId()).contains(this)) {
+					i.remove();
+				}
+			}
+		}
+		return states;
+	}
+
+	public String toString() {
+		return connection != null ? connection.toString() : datagrams
+				.toString();
+	}
+
+	// Spool what was held and close the connection, e.g. as the plugin is
+	// unloaded; it's opened again if needed
+	public void close() {
+		spool(takeHeld(Collections.<Notification> emptyList()));
+		if (connection != null) {
+			connection.close();
+		} else {
+			datagrams.close();
+		}
+	}
+
+	// Keep the build notifications that could not be delivered; requests
+	// like server-up only mean something at the time they are made
+	public void spool(List<Notification> notifications) {
+		if (spool == null) {
+			return;
+		}
+		List<Notification> states = new ArrayList<Notification>(notifications.size());
+		for (Notification notification : notifications) {
+			if (notification.getNotificationTypeId() != NotificationType.NONE) {
+				states.add(notification);
+			}
+		}
+		try {
+			if (!states.isEmpty()) {
+				spool.append(states);
+			}
+		} catch (IOException e) {
+			Utils.logWarn(Utils.LOGGER, "Unable to spool notifications: %1$s",
+					e.getMessage());
+		}
+	}
+
+	// An older server gets a connection per command, so a new one means
+	// nothing; a streaming server that hung up may have restarted
+	private boolean needsResync() {
+		return resync
+				|| (!Boolean.FALSE.equals(connection.isStreaming()) && connection
+						.willReconnect());
+	}
+
+	private static List<byte[]> encode(List<Notification> notifications) {
+		List<byte[]> commands = new ArrayList<byte[]>(notifications.size());
+		for (Notification notification : notifications) {
+			commands.add(notification.getBytes());
+		}
+		return commands;
+	}
+
+}
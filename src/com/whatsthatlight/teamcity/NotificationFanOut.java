@@ -0,0 +1,245 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Sends commands to several notification servers at once from a single
+// thread: every connection is non-blocking and a selector tells which one
+// can make progress, and adding servers doesn't add threads. A send that
+// takes longer than the patience is left under way, and carries on with
+// the next call, so a slow server never delays the others; its listener is
+// told how it went once it's done.
+public class NotificationFanOut {
+
+	// Internal property for how long a send is waited for before the sender
+	// moves on (ms)
+	public static final String PATIENCE_PROPERTY = Utils.PROPERTY_PREFIX + "connection.patience";
+	// Default patience (ms)
+	public static final long DEFAULT_PATIENCE = 250;
+
+	// Told how a send went, once it's done
+	public interface Listener {
+
+		void delivered();
+
+		void failed(IOException e);
+
+	}
+
+	private Selector selector;
+	// The sends under way
+	private final Map<NotificationConnection, Flight> inFlight = new LinkedHashMap<NotificationConnection, Flight>();
+
+	// The patience configured in the TeamCity internal properties
+	public static long getPatience() {
+		return TeamCityProperties.getLong(PATIENCE_PROPERTY, DEFAULT_PATIENCE);
+	}
+
+	// Send the commands to each connection, waiting until they are all done;
+	// the connections that failed are returned with the reason
+	public synchronized Map<NotificationConnection, IOException> send(
+			Map<NotificationConnection, List<byte[]>> commands) {
+		final Map<NotificationConnection, IOException> failures = new LinkedHashMap<NotificationConnection, IOException>();
+		for (Map.Entry<NotificationConnection, List<byte[]>> entry : commands
+				.entrySet()) {
+			final NotificationConnection connection = entry.getKey();
+			// One send at a time on a connection
+			if (inFlight.containsKey(connection)) {
+				run(Long.MAX_VALUE);
+			}
+			start(connection, entry.getValue(), new Listener() {
+				public void delivered() {
+				}
+
+				public void failed(IOException e) {
+					failures.put(connection, e);
+				}
+			});
+		}
+		run(Long.MAX_VALUE);
+		return failures;
+	}
+
+	// Send the commands to one connection, failing if it fails
+	public void send(NotificationConnection connection, List<byte[]> commands)
+			throws IOException {
+		IOException failure = send(
+				Collections.singletonMap(connection, commands)).get(connection);
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// Start sending the commands to a connection that isn't busy; the
+	// listener may be told how it went right away, or by a later run()
+	public synchronized void start(NotificationConnection connection,
+			List<byte[]> commands, Listener listener) {
+		if (inFlight.containsKey(connection)) {
+			throw new IllegalStateException(connection + " is busy");
+		}
+		try {
+			if (selector == null) {
+				selector = Selector.open();
+			}
+			connection.start(commands, selector, System.currentTimeMillis());
+		} catch (IOException e) {
+			listener.failed(e);
+			return;
+		}
+		if (connection.isDone()) {
+			listener.delivered();
+		} else {
+			inFlight.put(connection, new Flight(listener, System
+					.currentTimeMillis()));
+		}
+	}
+
+	// Whether a send to the connection is under way
+	public synchronized boolean isBusy(NotificationConnection connection) {
+		return inFlight.containsKey(connection);
+	}
+
+	// Whether any send is under way
+	public synchronized boolean isPending() {
+		return !inFlight.isEmpty();
+	}
+
+	// Make progress on the sends under way: wait until those started less
+	// than the patience ago are done, and let the others get on with
+	// whatever they can without waiting for them
+	public synchronized void run(long patience) {
+		long now = System.currentTimeMillis();
+		do {
+			long wait = Long.MAX_VALUE;
+			boolean waiting = false;
+			for (Map.Entry<NotificationConnection, Flight> entry : inFlight
+					.entrySet()) {
+				long age = now - entry.getValue().startedAt;
+				wait = Math.min(wait, entry.getKey().getDeadline() - now);
+				if (age < patience) {
+					waiting = true;
+					wait = Math.min(wait, patience - age);
+				}
+			}
+			try {
+				if (!waiting) {
+					if (!inFlight.isEmpty()) {
+						selector.selectNow();
+						progress(System.currentTimeMillis());
+					}
+					return;
+				}
+				// Zero would mean to wait forever
+				selector.select(Math.max(1, wait));
+			} catch (IOException e) {
+				for (NotificationConnection connection : new ArrayList<NotificationConnection>(
+						inFlight.keySet())) {
+					connection.close();
+					finish(connection, e);
+				}
+				return;
+			}
+			now = System.currentTimeMillis();
+			progress(now);
+		} while (!inFlight.isEmpty());
+	}
+
+	// Give up the sends under way, which fail, and let the selector go; it's
+	// opened again if needed
+	public synchronized void close() {
+		for (NotificationConnection connection : new ArrayList<NotificationConnection>(
+				inFlight.keySet())) {
+			connection.close();
+			finish(connection, new IOException("Closed"));
+		}
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing more to be done
+			}
+			selector = null;
+		}
+	}
+
+	private void progress(long now) {
+		for (SelectionKey key : selector.selectedKeys()) {
+			NotificationConnection connection = (NotificationConnection) key
+					.attachment();
+			if (!key.isValid() || !inFlight.containsKey(connection)) {
+				continue;
+			}
+			try {
+				connection.handleReady(now);
+			} catch (IOException e) {
+				finish(connection, e);
+			}
+		}
+		selector.selectedKeys().clear();
+		for (NotificationConnection connection : new ArrayList<NotificationConnection>(
+				inFlight.keySet())) {
+			try {
+				connection.poll(now);
+				if (!connection.isDone() && now >= connection.getDeadline()) {
+					connection.handleTimeout(now);
+				}
+			} catch (IOException e) {
+				finish(connection, e);
+				continue;
+			}
+			if (connection.isDone()) {
+				finish(connection, null);
+			}
+		}
+	}
+
+	private void finish(NotificationConnection connection, IOException failure) {
+		Flight flight = inFlight.remove(connection);
+		if (flight == null) {
+			return;
+		}
+		if (failure == null) {
+			flight.listener.delivered();
+		} else {
+			flight.listener.failed(failure);
+		}
+	}
+
+	private static class Flight {
+
+		final Listener listener;
+		final long startedAt;
+
+		Flight(Listener listener, long startedAt) {
+			this.listener = listener;
+			this.startedAt = startedAt;
+		}
+
+	}
+
+}
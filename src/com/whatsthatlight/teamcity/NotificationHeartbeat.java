@@ -0,0 +1,118 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Lets the notification servers tell a quiet TeamCity apart from one that
+// is down: the server-up request is sent at a regular interval from a
+// single daemon thread, unless every server had other commands delivered
+// within half the interval, which show as much. Every server, as with
+// routes, a busy project says nothing to the servers of the others. Only
+// half, as the last beat is itself such a command, delivered a little
+// after it was due; skipping on that would stretch the interval to twice
+// its length. It goes through the dispatcher like any other command, so it
+// uses the same connections. It may overtake builds that started, which
+// wait in a lower lane (see NotificationLanes); as it says nothing about
+// any build, that does no harm.
+public class NotificationHeartbeat {
+
+	// Tells when the notification servers were last delivered to
+	public interface Traffic {
+		// When the server that was delivered to least recently was last
+		// delivered to (ms since the epoch), or zero if one never was
+		long getQuietSince();
+	}
+
+	// The notification servers the plugin sends to
+	public static final Traffic ENDPOINTS = new Traffic() {
+		public long getQuietSince() {
+			return Utils.getQuietSince();
+		}
+	};
+
+	// Internal property for the heartbeat interval (ms); 0 disables it
+	public static final String INTERVAL_PROPERTY = Utils.PROPERTY_PREFIX + "heartbeat.interval";
+	// Default heartbeat interval
+	public static final long DEFAULT_INTERVAL = 30 * 1000;
+
+	private final NotificationDispatcher dispatcher;
+	private final long interval;
+	private final Traffic traffic;
+	private ScheduledExecutorService scheduler;
+
+	public NotificationHeartbeat(NotificationDispatcher dispatcher,
+			long interval, Traffic traffic) {
+		this.dispatcher = dispatcher;
+		this.interval = interval;
+		this.traffic = traffic;
+	}
+
+	// Create a heartbeat configured from the TeamCity internal properties
+	public static NotificationHeartbeat create(NotificationDispatcher dispatcher) {
+		return new NotificationHeartbeat(dispatcher, TeamCityProperties
+				.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL), ENDPOINTS);
+	}
+
+	public boolean isEnabled() {
+		return interval > 0;
+	}
+
+	public synchronized void start() {
+		if (!isEnabled() || scheduler != null) {
+			return;
+		}
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, Utils.NAME
+								+ " heartbeat");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				beat(System.currentTimeMillis());
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	// Send the server-up request, unless every server had commands
+	// delivered within half the interval; returns whether it was sent
+	public boolean beat(long now) {
+		if (now - traffic.getQuietSince() < interval / 2) {
+			return false;
+		}
+		dispatcher.dispatch(new Notification(Utils.createServerUpCommand()));
+		return true;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+// Orders the notifications that are ready to be sent by urgency, so that
+// when the sender is behind, a failure isn't stuck behind a pile of builds
+// that started: each lane is first in, first out, and the most urgent lane
+// with anything in it goes first. So that a busy urgent lane can't starve
+// the others, a notification that has waited longer than the maximum wait
+// goes first regardless of its lane.
+//
+// A newer build state of a build configuration replaces one that is still
+// waiting, as for the coalescer; this also keeps the states of a build in
+// order, as the older one could otherwise be overtaken by the newer one.
+// Not thread-safe; it's only used by the dispatcher's sender thread.
+public class NotificationLanes {
+
+	public enum Lane {
+		// Failures and hanging builds; the lights must turn red right away
+		URGENT,
+		// Successes, responsibilities and requests to the server
+		NORMAL,
+		// Builds that started
+		ROUTINE
+	}
+
+	private static final Lane[] LANES = Lane.values();
+
+	private final long maxWait;
+	// Per lane, by coalescing key, in arrival order
+	private final List<LinkedHashMap<Object, Waiting>> lanes = new ArrayList<LinkedHashMap<Object, Waiting>>(LANES.length);
+	// The lane that each key is waiting in
+	private final Map<Object, LinkedHashMap<Object, Waiting>> laneOfKey = new HashMap<Object, LinkedHashMap<Object, Waiting>>();
+	private int size = 0;
+	private volatile long replaced = 0;
+
+	public NotificationLanes(long maxWait) {
+		this.maxWait = maxWait;
+		for (int i = 0; i < LANES.length; i++) {
+			lanes.add(new LinkedHashMap<Object, Waiting>());
+		}
+	}
+
+	public static Lane laneOf(int notificationTypeId) {
+		switch (notificationTypeId) {
+		case NotificationType.BUILD_FAILING:
+		case NotificationType.BUILD_FAILED:
+		case NotificationType.BUILD_FAILED_TO_START:
+		case NotificationType.BUILD_HANGING:
+			return Lane.URGENT;
+		case NotificationType.BUILD_BUILDING:
+			return Lane.ROUTINE;
+		default:
+			return Lane.NORMAL;
+		}
+	}
+
+	public void add(Notification notification, long now) {
+		Object key = notification.getCoalescingKey();
+		if (key == null) {
+			key = new Object();
+		}
+		LinkedHashMap<Object, Waiting> lane = lanes.get(laneOf(
+				notification.getNotificationTypeId()).ordinal());
+		LinkedHashMap<Object, Waiting> current = laneOfKey.get(key);
+		if (current == lane) {
+			// Same lane, so the same place in the queue
+			current.get(key).notification = notification;
+			replaced++;
+			return;
+		}
+		if (current != null) {
+			current.remove(key);
+			size--;
+			replaced++;
+		}
+		lane.put(key, new Waiting(notification, now));
+		laneOfKey.put(key, lane);
+		size++;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Number of notifications that were replaced by a newer one
+	public long getReplacedCount() {
+		return replaced;
+	}
+
+	// Take up to max notifications, most urgent first
+	public List<Notification> take(int max, long now) {
+		List<Notification> taken = new LinkedList<Notification>();
+		while (size > 0 && taken.size() < max) {
+			LinkedHashMap<Object, Waiting> next = null;
+			long oldest = Long.MAX_VALUE;
+			for (LinkedHashMap<Object, Waiting> lane : lanes) {
+				if (lane.isEmpty()) {
+					continue;
+				}
+				if (next == null) {
+					next = lane;
+				}
+				// The longest waiting of all, if it has waited too long
+				long since = lane.values().iterator().next().since;
+				if (now - since > maxWait && since < oldest) {
+					next = lane;
+					oldest = since;
+				}
+			}
+			Iterator<Map.Entry<Object, Waiting>> head = next.entrySet()
+					.iterator();
+			Map.Entry<Object, Waiting> entry = head.next();
+			head.remove();
+			laneOfKey.remove(entry.getKey());
+			size--;
+			taken.add(entry.getValue().notification);
+		}
+		return taken;
+	}
+
+	private static class Waiting {
+
+		Notification notification;
+		final long since;
+
+		Waiting(Notification notification, long since) {
+			this.notification = notification;
+			this.since = since;
+		}
+
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Protects the notification server from a storm of builds, e.g. a
+// misconfigured trigger that starts hundreds of builds a minute. Every build
+// configuration has a token bucket, and there is one for all of them
+// together: a build state is let through if both have a token. Otherwise
+// it is held back until they do, and a newer state of the same build
+// configuration replaces the one that is held, so the lights end up showing
+// the latest state rather than missing it. Other commands, e.g. requests to
+// the server, are never held back. How many states were held back is
+// logged periodically. Not thread-safe; it's only used by the dispatcher's
+// sender thread.
+public class NotificationRateLimiter {
+
+	// Internal property for the rate per build configuration (per minute); 0 disables it
+	public static final String RATE_PROPERTY = Utils.PROPERTY_PREFIX + "rateLimit.perBuildConfig";
+	// Internal property for how many states of a build configuration may go at once
+	public static final String BURST_PROPERTY = Utils.PROPERTY_PREFIX + "rateLimit.burst";
+	// Internal property for the rate over all build configurations (per minute); 0 disables it
+	public static final String GLOBAL_RATE_PROPERTY = Utils.PROPERTY_PREFIX + "rateLimit.global";
+	// Internal property for how many states may go at once over all build configurations
+	public static final String GLOBAL_BURST_PROPERTY = Utils.PROPERTY_PREFIX + "rateLimit.globalBurst";
+	// Internal property for how often the states held back are logged (ms)
+	public static final String REPORT_INTERVAL_PROPERTY = Utils.PROPERTY_PREFIX + "rateLimit.reportInterval";
+	// Default rate per build configuration; a build takes three or four
+	public static final int DEFAULT_RATE = 60;
+	// Default burst per build configuration
+	public static final int DEFAULT_BURST = 10;
+	// Default rate over all build configurations
+	public static final int DEFAULT_GLOBAL_RATE = 1200;
+	// Default burst over all build configurations
+	public static final int DEFAULT_GLOBAL_BURST = 100;
+	// Default report interval
+	public static final long DEFAULT_REPORT_INTERVAL = 60 * 1000;
+	// Build configurations named in a report, at most
+	private static final int REPORTED_BUILD_CONFIGS = 10;
+
+	private final int rate;
+	private final int burst;
+	private final long reportInterval;
+	// Null when there is no global limit
+	private final TokenBucket global;
+	// By build configuration
+	private final Map<String, TokenBucket> buckets = new HashMap<String, TokenBucket>();
+	// By coalescing key, oldest first
+	private final LinkedHashMap<Object, Notification> held = new LinkedHashMap<Object, Notification>();
+	// States held back since the last report, by build configuration
+	private final LinkedHashMap<String, Integer> throttledSinceReport = new LinkedHashMap<String, Integer>();
+	private long reportAt = Long.MAX_VALUE;
+	private long reportedAt;
+	private volatile long throttled = 0;
+	private volatile long replaced = 0;
+
+	// Rates are per minute; a rate of zero means no limit
+	public NotificationRateLimiter(int rate, int burst, int globalRate,
+			int globalBurst, long reportInterval) {
+		this.rate = Math.max(0, rate);
+		this.burst = Math.max(1, burst);
+		this.global = globalRate > 0 ? new TokenBucket(globalRate, Math.max(1,
+				globalBurst), 0) : null;
+		this.reportInterval = Math.max(1, reportInterval);
+		// So that the first build states held back are reported right away
+		this.reportedAt = -this.reportInterval;
+	}
+
+	// A limiter that never holds anything back
+	public static NotificationRateLimiter unlimited() {
+		return new NotificationRateLimiter(0, 1, 0, 1, DEFAULT_REPORT_INTERVAL);
+	}
+
+	// Create a limiter configured from the TeamCity internal properties
+	public static NotificationRateLimiter create() {
+		return new NotificationRateLimiter(TeamCityProperties.getInteger(
+				RATE_PROPERTY, DEFAULT_RATE), TeamCityProperties.getInteger(
+				BURST_PROPERTY, DEFAULT_BURST), TeamCityProperties.getInteger(
+				GLOBAL_RATE_PROPERTY, DEFAULT_GLOBAL_RATE),
+				TeamCityProperties.getInteger(GLOBAL_BURST_PROPERTY,
+						DEFAULT_GLOBAL_BURST), TeamCityProperties.getLong(
+						REPORT_INTERVAL_PROPERTY, DEFAULT_REPORT_INTERVAL));
+	}
+
+	public boolean isLimiting() {
+		return rate > 0 || global != null;
+	}
+
+	// Of the notifications that arrived, and those held back before, the
+	// ones that may be sent now, in order; the rest are held back
+	public List<Notification> admit(List<Notification> arrived, long now) {
+		List<Notification> admitted = new LinkedList<Notification>();
+		if (!isLimiting()) {
+			admitted.addAll(arrived);
+			return admitted;
+		}
+		// What was held back goes first, as it's older
+		Iterator<Notification> iter = held.values().iterator();
+		while (iter.hasNext()) {
+			Notification notification = iter.next();
+			if (tryTake(notification.getBuildConfigId(), now)) {
+				admitted.add(notification);
+				iter.remove();
+			}
+		}
+		for (Notification notification : arrived) {
+			Object key = notification.getCoalescingKey();
+			if (key == null) {
+				admitted.add(notification);
+			} else if (held.containsKey(key)) {
+				// Behind the state that is held back, so it can't overtake it
+				held.put(key, notification);
+				replaced++;
+				throttled(notification, now);
+			} else if (tryTake(notification.getBuildConfigId(), now)) {
+				admitted.add(notification);
+			} else {
+				held.put(key, notification);
+				throttled(notification, now);
+			}
+		}
+		if (now >= reportAt) {
+			report(now);
+		}
+		return admitted;
+	}
+
+	// When admit() should be called again, or Long.MAX_VALUE if there's no need
+	public long nextDue(long now) {
+		long due = reportAt;
+		for (Notification notification : held.values()) {
+			due = Math.min(due, nextTokenAt(notification.getBuildConfigId(),
+					now));
+		}
+		return due;
+	}
+
+	// Take what is held back, e.g. as the dispatcher is shut down
+	public List<Notification> takeHeld() {
+		List<Notification> taken = new LinkedList<Notification>(held.values());
+		held.clear();
+		return taken;
+	}
+
+	public int getHeldCount() {
+		return held.size();
+	}
+
+	// Number of states that were held back, including those replaced while
+	// they were
+	public long getThrottledCount() {
+		return throttled;
+	}
+
+	// Number of held back states that were replaced by a newer one
+	public long getReplacedCount() {
+		return replaced;
+	}
+
+	private boolean tryTake(String buildConfigId, long now) {
+		TokenBucket bucket = bucketOf(buildConfigId, now);
+		if ((bucket != null && !bucket.hasToken(now))
+				|| (global != null && !global.hasToken(now))) {
+			return false;
+		}
+		if (bucket != null) {
+			bucket.take();
+		}
+		if (global != null) {
+			global.take();
+		}
+		return true;
+	}
+
+	private long nextTokenAt(String buildConfigId, long now) {
+		TokenBucket bucket = bucketOf(buildConfigId, now);
+		long at = bucket == null ? now : bucket.nextTokenAt(now);
+		return global == null ? at : Math.max(at, global.nextTokenAt(now));
+	}
+
+	private TokenBucket bucketOf(String buildConfigId, long now) {
+		if (rate <= 0) {
+			return null;
+		}
+		TokenBucket bucket = buckets.get(buildConfigId);
+		if (bucket == null) {
+			bucket = new TokenBucket(rate, burst, now);
+			buckets.put(buildConfigId, bucket);
+		}
+		return bucket;
+	}
+
+	private void throttled(Notification notification, long now) {
+		throttled++;
+		String buildConfigId = notification.getBuildConfigId();
+		Integer count = throttledSinceReport.get(buildConfigId);
+		throttledSinceReport.put(buildConfigId, Integer.valueOf(count == null ? 1
+				: count.intValue() + 1));
+		if (reportAt == Long.MAX_VALUE) {
+			reportAt = Math.max(now, reportedAt + reportInterval);
+		}
+	}
+
+	private void report(long now) {
+		int total = 0;
+		StringBuilder buildConfigs = new StringBuilder();
+		int named = 0;
+		for (Map.Entry<String, Integer> entry : throttledSinceReport
+				.entrySet()) {
+			total += entry.getValue().intValue();
+			if (named++ < REPORTED_BUILD_CONFIGS) {
+				if (buildConfigs.length() > 0) {
+					buildConfigs.append(", ");
+				}
+				buildConfigs.append(entry.getKey()).append(" (")
+						.append(entry.getValue()).append(")");
+			} else if (named == REPORTED_BUILD_CONFIGS + 1) {
+				buildConfigs.append(", ...");
+			}
+		}
+		Utils.logWarn(Utils.LOGGER,
+				"Held back %1$s build states of %2$s build configurations; %3$s still held: %4$s",
+				total, throttledSinceReport.size(), held.size(), buildConfigs);
+		throttledSinceReport.clear();
+		reportedAt = now;
+		reportAt = Long.MAX_VALUE;
+		// Forget the build configurations that are quiet again
+		Iterator<TokenBucket> iter = buckets.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().isFull(now)) {
+				iter.remove();
+			}
+		}
+	}
+
+	private static class TokenBucket {
+
+		private final double capacity;
+		// Tokens added per millisecond
+		private final double refill;
+		private double tokens;
+		private long refilledAt;
+
+		TokenBucket(int perMinute, int capacity, long now) {
+			this.capacity = capacity;
+			this.refill = perMinute / 60000.0;
+			this.tokens = capacity;
+			this.refilledAt = now;
+		}
+
+		boolean hasToken(long now) {
+			refill(now);
+			return tokens >= 1;
+		}
+
+		void take() {
+			tokens--;
+		}
+
+		long nextTokenAt(long now) {
+			refill(now);
+			if (tokens >= 1) {
+				return now;
+			}
+			return now + (long) Math.ceil((1 - tokens) / refill);
+		}
+
+		boolean isFull(long now) {
+			refill(now);
+			return tokens >= capacity;
+		}
+
+		private void refill(long now) {
+			if (now > refilledAt) {
+				tokens = Math.min(capacity, tokens + (now - refilledAt)
+						* refill);
+				refilledAt = now;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Decides which notification servers hear about a project. Rules map a
+// project ID, or a pattern with * wildcards, to a set of servers. Given a
+// ParentResolver, a project without a rule of its own gets the rule of its
+// nearest parent; the router TeamCity gets has none, as projects are flat
+// in its API. A project that no rule matches goes to every server.
+// Requests that aren't about a project, like server-up, also go to every
+// server.
+//
+// Exact IDs are looked up in a hash map; only patterns need a scan, and the
+// outcome for a project is remembered, so routing an event costs a single
+// hash lookup after the first event of a project.
+public class NotificationRouter<T> {
+
+	// Finds the parent of a project
+	public interface ParentResolver {
+		// Null for a top-level project
+		String getParentId(String projectId);
+	}
+
+	// Projects are flat in the TeamCity API this plugin is built against
+	public static final ParentResolver NO_PARENTS = new ParentResolver() {
+		public String getParentId(String projectId) {
+			return null;
+		}
+	};
+
+	// Internal property for the routing rules, as a semicolon separated list
+	// of project=host:port,host:port
+	public static final String ROUTES_PROPERTY = Utils.PROPERTY_PREFIX + "routes";
+	private static final String RULE_SEP = ";";
+	private static final String ENDPOINT_SEP = ",";
+	private static final String WILDCARD = "*";
+
+	private final Map<String, List<T>> exact = new HashMap<String, List<T>>();
+	private final Map<Pattern, List<T>> patterns = new LinkedHashMap<Pattern, List<T>>();
+	private final List<T> everywhere;
+	private final ParentResolver parents;
+	private final Map<String, List<T>> routes = new ConcurrentHashMap<String, List<T>>();
+
+	// Rules are tried in order when patterns overlap; everywhere is where
+	// unmatched projects go
+	public NotificationRouter(Map<String, ? extends Iterable<T>> rules,
+			List<T> everywhere, ParentResolver parents) {
+		for (Map.Entry<String, ? extends Iterable<T>> rule : rules.entrySet()) {
+			List<T> targets = new ArrayList<T>();
+			for (T target : rule.getValue()) {
+				targets.add(target);
+			}
+			targets = Collections.unmodifiableList(targets);
+			String project = rule.getKey();
+			if (project.contains(WILDCARD)) {
+				patterns.put(compile(project), targets);
+			} else {
+				exact.put(project, targets);
+			}
+		}
+		this.everywhere = Collections.unmodifiableList(new ArrayList<T>(
+				everywhere));
+		this.parents = parents;
+	}
+
+	// Create a router over the endpoints with the rules in the TeamCity
+	// internal properties; rules naming servers that aren't endpoints are
+	// ignored
+	public static NotificationRouter<NotificationEndpoint> create(
+			List<NotificationEndpoint> endpoints) {
+		Map<String, NotificationEndpoint> byAddress = new HashMap<String, NotificationEndpoint>();
+		for (NotificationEndpoint endpoint : endpoints) {
+			byAddress.put(endpoint.toString(), endpoint);
+		}
+		Map<String, Set<NotificationEndpoint>> rules = new LinkedHashMap<String, Set<NotificationEndpoint>>();
+		String property = TeamCityProperties.getProperty(ROUTES_PROPERTY, "");
+		for (String rule : property.split(RULE_SEP)) {
+			int sep = rule.indexOf(Utils.CMD_KV_SEP);
+			if (sep < 0) {
+				if (!rule.trim().isEmpty()) {
+					Utils.logWarn(Utils.LOGGER,
+							"Ignoring route %1$s: no servers", rule);
+				}
+				continue;
+			}
+			Set<NotificationEndpoint> targets = new LinkedHashSet<NotificationEndpoint>();
+			for (String address : rule.substring(sep + 1).split(ENDPOINT_SEP)) {
+				if (address.trim().isEmpty()) {
+					continue;
+				}
+				address = NotificationEndpoint.normalize(address);
+				NotificationEndpoint endpoint = byAddress.get(address);
+				if (endpoint == null) {
+					Utils.logWarn(Utils.LOGGER,
+							"Ignoring server %1$s in route %2$s: not an endpoint",
+							address, rule);
+				} else {
+					targets.add(endpoint);
+				}
+			}
+			rules.put(rule.substring(0, sep).trim(), targets);
+		}
+		return new NotificationRouter<NotificationEndpoint>(rules, endpoints,
+				NO_PARENTS);
+	}
+
+	// Where to send a notification about the project
+	public List<T> route(String projectId) {
+		if (projectId == null) {
+			return everywhere;
+		}
+		List<T> targets = routes.get(projectId);
+		if (targets == null) {
+			targets = resolve(projectId);
+			routes.put(projectId, targets);
+		}
+		return targets;
+	}
+
+	// Forget what was worked out, e.g. when projects have moved
+	public void reset() {
+		routes.clear();
+	}
+
+	private List<T> resolve(String projectId) {
+		for (String id = projectId; id != null; id = parents.getParentId(id)) {
+			List<T> targets = exact.get(id);
+			if (targets != null) {
+				return targets;
+			}
+			for (Map.Entry<Pattern, List<T>> pattern : patterns.entrySet()) {
+				if (pattern.getKey().matcher(id).matches()) {
+					return pattern.getValue();
+				}
+			}
+		}
+		return everywhere;
+	}
+
+	private static Pattern compile(String wildcard) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		int star;
+		while ((star = wildcard.indexOf(WILDCARD, start)) >= 0) {
+			regex.append(Pattern.quote(wildcard.substring(start, star)));
+			regex.append(".*");
+			start = star + 1;
+		}
+		regex.append(Pattern.quote(wildcard.substring(start)));
+		return Pattern.compile(regex.toString());
+	}
+
+}
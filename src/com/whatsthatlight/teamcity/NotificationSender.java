@@ -0,0 +1,35 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.List;
+
+// Delivers notifications, in order, to the notification server
+public interface NotificationSender {
+
+	void send(List<Notification> notifications) throws Exception;
+
+	// Whether sends started earlier are still under way; if so, send() is
+	// called again, with nothing new, so that they can finish
+	boolean isPending();
+
+	// Keep notifications that won't be sent, as the dispatcher is shut down
+	// before their turn came, for when the plugin is loaded again
+	void spool(List<Notification> notifications);
+
+}
@@ -0,0 +1,332 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+// Jetbrains
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// An append-only store on disk for notifications that could not be
+// delivered, so that the lights catch up once the server is back, even
+// across a TeamCity restart. Records are appended to the newest segment
+// file, and a new segment is started when it grows too big. The
+// notification server only cares about the latest state of a build
+// configuration, so when the spool reaches its size cap it is compacted to
+// just that; if it's still too big, the oldest segments are discarded.
+public class NotificationSpool {
+
+	// Internal property for the spool directory
+	public static final String DIRECTORY_PROPERTY = Utils.PROPERTY_PREFIX + "spool.directory";
+	// Internal property for the maximum size of the spool (bytes); 0 disables it
+	public static final String MAX_SIZE_PROPERTY = Utils.PROPERTY_PREFIX + "spool.maxSize";
+	// Internal property for the size at which a new segment is started (bytes)
+	public static final String SEGMENT_SIZE_PROPERTY = Utils.PROPERTY_PREFIX + "spool.segmentSize";
+	// Default maximum size of the spool (bytes)
+	public static final long DEFAULT_MAX_SIZE = 10 * 1024 * 1024;
+	// Default segment size (bytes)
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	// Length of the record length that precedes every record
+	private static final int HEADER_LENGTH = 4;
+
+	private final File directory;
+	private final long maxSize;
+	private final long segmentSize;
+	// Segments, oldest first
+	private final LinkedList<File> segments = new LinkedList<File>();
+	private long nextSegment = 0;
+	private long size = 0;
+
+	public NotificationSpool(File directory, long maxSize, long segmentSize)
+			throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.segmentSize = Math.min(segmentSize, maxSize);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spool directory "
+					+ directory);
+		}
+		// Pick up where a previous run left off
+		File[] existing = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return sequenceOf(name) >= 0;
+			}
+		});
+		Arrays.sort(existing, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long sa = sequenceOf(a.getName());
+				long sb = sequenceOf(b.getName());
+				return sa < sb ? -1 : (sa == sb ? 0 : 1);
+			}
+		});
+		for (File segment : existing) {
+			segments.add(segment);
+			nextSegment = sequenceOf(segment.getName()) + 1;
+		}
+		// Only the segment being appended to can end in a torn record;
+		// anything appended after it would never be read back
+		if (!segments.isEmpty()) {
+			repair(segments.getLast());
+		}
+		for (File segment : segments) {
+			size += segment.length();
+		}
+	}
+
+	// Create a spool in the named subdirectory of the one configured in the
+	// TeamCity internal properties, or null if it's disabled or there is
+	// nowhere to put it
+	public static NotificationSpool create(String name) {
+		long maxSize = TeamCityProperties.getLong(MAX_SIZE_PROPERTY,
+				DEFAULT_MAX_SIZE);
+		String path = TeamCityProperties.getPropertyOrNull(DIRECTORY_PROPERTY);
+		if (path == null) {
+			String dataPath = TeamCityProperties.getPropertyOrNull(
+					TeamCityProperties.TEAMCITY_DATA_PATH_PROPERTY);
+			if (dataPath != null) {
+				path = new File(dataPath,
+						"system/pluginData/lightsNotifier/spool").getPath();
+			}
+		}
+		if (maxSize <= 0 || path == null) {
+			return null;
+		}
+		try {
+			return new NotificationSpool(new File(path, name), maxSize,
+					TeamCityProperties.getLong(SEGMENT_SIZE_PROPERTY,
+							DEFAULT_SEGMENT_SIZE));
+		} catch (IOException e) {
+			Utils.logWarn(Utils.LOGGER,
+					"Notifications will not be spooled: %1$s", e.getMessage());
+			return null;
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	// Size on disk (bytes)
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized void append(List<Notification> notifications)
+			throws IOException {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (Notification notification : notifications) {
+			writeRecord(records, notification);
+		}
+		if (size + records.size() > maxSize) {
+			compact();
+		}
+		while (!segments.isEmpty() && size + records.size() > maxSize) {
+			File oldest = segments.removeFirst();
+			size -= oldest.length();
+			Utils.logWarn(Utils.LOGGER,
+					"Notification spool full, discarding %1$s", oldest);
+			oldest.delete();
+		}
+		if (segments.isEmpty()
+				|| segments.getLast().length() + records.size() > segmentSize) {
+			segments.add(new File(directory, SEGMENT_PREFIX + nextSegment++
+					+ SEGMENT_SUFFIX));
+		}
+		write(segments.getLast(), records.toByteArray());
+		size += records.size();
+	}
+
+	// Everything in the spool, compacted, in the order it was spooled
+	public synchronized List<Notification> readAll() throws IOException {
+		LinkedHashMap<Object, Notification> latest = new LinkedHashMap<Object, Notification>();
+		for (File segment : segments) {
+			for (Notification notification : read(segment)) {
+				Object key = notification.getCoalescingKey();
+				if (key == null) {
+					key = new Object();
+				}
+				// Re-insert, so that the latest state takes the latest place
+				latest.remove(key);
+				latest.put(key, notification);
+			}
+		}
+		return new LinkedList<Notification>(latest.values());
+	}
+
+	// Discard everything, e.g. once it has been delivered
+	public synchronized void clear() {
+		for (File segment : segments) {
+			segment.delete();
+		}
+		segments.clear();
+		size = 0;
+	}
+
+	// Rewrite the spool to hold only the latest state per build configuration
+	public synchronized void compact() throws IOException {
+		if (segments.isEmpty()) {
+			return;
+		}
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (Notification notification : readAll()) {
+			writeRecord(records, notification);
+		}
+		// The compacted segment is written before the old ones are deleted,
+		// so a crash in between leaves duplicates rather than a gap
+		File compacted = new File(directory, SEGMENT_PREFIX + nextSegment++
+				+ SEGMENT_SUFFIX);
+		write(compacted, records.toByteArray());
+		clear();
+		segments.add(compacted);
+		size = compacted.length();
+	}
+
+	private static long sequenceOf(String name) {
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Cut a record short by a crash off the end of the segment
+	private static void repair(File segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			long length = file.length();
+			long end = 0;
+			while (end + HEADER_LENGTH <= length) {
+				file.seek(end);
+				int recordLength = file.readInt();
+				if (recordLength < 0
+						|| end + HEADER_LENGTH + recordLength > length) {
+					break;
+				}
+				end += HEADER_LENGTH + recordLength;
+			}
+			if (end < length) {
+				Utils.logWarn(Utils.LOGGER,
+						"Removing a partial record from the end of %1$s",
+						segment);
+				file.getChannel().truncate(end);
+				file.getChannel().force(false);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void writeRecord(ByteArrayOutputStream records,
+			Notification notification) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeInt(notification.getNotificationTypeId());
+		writeNullable(out, notification.getProjectId());
+		writeNullable(out, notification.getBuildConfigId());
+		out.write(notification.getBytes());
+		out.flush();
+		new DataOutputStream(records).writeInt(body.size());
+		body.writeTo(records);
+	}
+
+	private static void writeNullable(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void write(File segment, byte[] records) throws IOException {
+		FileOutputStream stream = new FileOutputStream(segment, true);
+		try {
+			FileChannel channel = stream.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(records);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static List<Notification> read(File segment) throws IOException {
+		List<Notification> notifications = new LinkedList<Notification>();
+		FileInputStream stream = new FileInputStream(segment);
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = stream.getChannel();
+			buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// Keep reading
+			}
+		} finally {
+			stream.close();
+		}
+		buffer.flip();
+		while (buffer.remaining() >= HEADER_LENGTH) {
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				// A record cut short by a crash; nothing follows it
+				Utils.logWarn(Utils.LOGGER,
+						"Ignoring a partial record at the end of %1$s",
+						segment);
+				break;
+			}
+			byte[] body = new byte[length];
+			buffer.get(body);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					body));
+			int notificationTypeId = in.readInt();
+			String projectId = readNullable(in);
+			String buildConfigId = readNullable(in);
+			byte[] command = new byte[in.available()];
+			in.readFully(command);
+			notifications.add(new Notification(notificationTypeId, projectId,
+					buildConfigId, command));
+		}
+		return notifications;
+	}
+
+}
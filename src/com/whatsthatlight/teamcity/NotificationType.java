@@ -32,17 +32,50 @@ public class NotificationType {
     public static final int BUILD_RESPONSIBILITY_ASSIGNED  = 8;
     public static final int TEST_RESPONSIBILITY_ASSIGNED   = 9;   
    
-    public static String getName(Integer status) throws IllegalAccessException, InvalidNotificationTypeException
+    // Names indexed by notification type, filled in once from the constants
+    // above so that looking a name up costs no more than an array access
+    private static final String[] NAMES = new String[TEST_RESPONSIBILITY_ASSIGNED + 1];
+    
+    static
     {
-    	Field[] fields = NotificationType.class.getFields();
-    	for (int i = 0; i < fields.length; i++)
+    	for (Field field : NotificationType.class.getFields())
     	{
-    		if (((Integer)fields[i].get(null)).equals(status))
+    		if (field.getType() != int.class || !Modifier.isStatic(field.getModifiers()))
+    		{
+    			continue;
+    		}
+    		try
+    		{
+    			NAMES[field.getInt(null)] = field.getName();
+    		}
+    		catch (IllegalAccessException e)
     		{
-    			return fields[i].getName();
+    			// Public constants are always accessible
     		}
     	}
-    	throw new InvalidNotificationTypeException("Notification type not found");
+    }
+   
+    public static String getName(int status) throws InvalidNotificationTypeException
+    {
+    	if (status < 0 || status >= NAMES.length || NAMES[status] == null)
+    	{
+    		throw new InvalidNotificationTypeException("Notification type not found");
+    	}
+    	return NAMES[status];
+    }
+    
+    // Whether the notification type is a state of a build, as opposed to
+    // e.g. a change in responsibility
+    public static boolean isBuildState(int status)
+    {
+    	return status >= BUILD_BUILDING && status <= BUILD_SUCCESSFUL;
+    }
+    
+    // Whether the notification type is the last one a build will raise
+    public static boolean isBuildFinished(int status)
+    {
+    	return status == BUILD_FAILED || status == BUILD_FAILED_TO_START
+    			|| status == BUILD_SUCCESSFUL;
     }
     
 }
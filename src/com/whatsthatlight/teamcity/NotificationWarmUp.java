@@ -0,0 +1,174 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+// Jetbrains
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+// Fills in the snapshot from the build history when TeamCity starts, so
+// that the lights show the state of every build configuration right away,
+// rather than staying dark until each one builds again. The projects are
+// walked once, and the last finished build of every build configuration is
+// looked up on a small pool of low-priority threads, so that TeamCity's
+// own startup isn't held up. Then the notification servers are told that
+// the server is up, along with the snapshot (see NotificationEndpoint).
+// A state that an event brought in the meantime is newer, so it's kept.
+public class NotificationWarmUp {
+
+	// Internal property for the number of threads looking up build history; 0 disables the warm-up
+	public static final String THREADS_PROPERTY = Utils.PROPERTY_PREFIX + "warmUp.threads";
+	// Internal property for how long the warm-up may take (ms)
+	public static final String TIMEOUT_PROPERTY = Utils.PROPERTY_PREFIX + "warmUp.timeout";
+	// Default number of threads
+	public static final int DEFAULT_THREADS = 2;
+	// Default time the warm-up may take
+	public static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+	private final ProjectManager projectManager;
+	private final BuildStateSnapshot snapshot;
+	private final NotificationDispatcher dispatcher;
+	private final int threads;
+	private final long timeout;
+
+	public NotificationWarmUp(ProjectManager projectManager,
+			BuildStateSnapshot snapshot, NotificationDispatcher dispatcher,
+			int threads, long timeout) {
+		this.projectManager = projectManager;
+		this.snapshot = snapshot;
+		this.dispatcher = dispatcher;
+		this.threads = threads;
+		this.timeout = timeout;
+	}
+
+	// Create a warm-up configured from the TeamCity internal properties
+	public static NotificationWarmUp create(ProjectManager projectManager,
+			BuildStateSnapshot snapshot, NotificationDispatcher dispatcher) {
+		return new NotificationWarmUp(projectManager, snapshot, dispatcher,
+				TeamCityProperties.getInteger(THREADS_PROPERTY,
+						DEFAULT_THREADS), TeamCityProperties.getLong(
+						TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+	}
+
+	public boolean isEnabled() {
+		return threads > 0;
+	}
+
+	// Warm up in the background
+	public void start() {
+		if (!isEnabled()) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				NotificationWarmUp.this.run();
+			}
+		}, Utils.NAME + " warm-up");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	// Warm up, waiting until it's done or the timeout has passed
+	public void run() {
+		long start = System.currentTimeMillis();
+		final AtomicInteger found = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, Utils.NAME
+								+ " warm-up " + count.incrementAndGet());
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+		int buildTypes = 0;
+		try {
+			for (SProject project : projectManager.getActiveProjects()) {
+				List<SBuildType> projectBuildTypes = project.getBuildTypes();
+				buildTypes += projectBuildTypes.size();
+				for (final SBuildType buildType : projectBuildTypes) {
+					pool.execute(new Runnable() {
+						public void run() {
+							if (warmUp(buildType)) {
+								found.incrementAndGet();
+							}
+						}
+					});
+				}
+			}
+			pool.shutdown();
+			if (!pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				Utils.logWarn(Utils.LOGGER,
+						"Warm-up timed out after %1$s ms; sending what was found",
+						timeout);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			Utils.logWarn(Utils.LOGGER, "Warm-up failed: %1$s", e.getMessage());
+		} finally {
+			pool.shutdownNow();
+		}
+		Utils.logInfo(Utils.LOGGER,
+				"Warm-up found the state of %1$s of %2$s build configurations in %3$s ms",
+				found.get(), buildTypes, System.currentTimeMillis() - start);
+		if (!snapshot.isEmpty()) {
+			// The snapshot goes along with the first send after this
+			Utils.resyncEndpoints();
+		}
+		dispatcher.dispatch(new Notification(Utils.createServerUpCommand()));
+	}
+
+	// Remember the state of the last finished build of a build
+	// configuration; returns whether there was one
+	private boolean warmUp(SBuildType buildType) {
+		try {
+			SBuild build = buildType.getLastChangesFinished();
+			if (build == null || build.isPersonal()) {
+				return false;
+			}
+			int notificationTypeId = build.getBuildStatus().isSuccessful()
+					? NotificationType.BUILD_SUCCESSFUL
+					: NotificationType.BUILD_FAILED;
+			String recipients = Utils.mergeCsvs(Utils
+					.tryGetTriggeredByUser(build), Utils
+					.getUsersThatCommittedToBuild(build));
+			snapshot.updateIfAbsent(notificationTypeId, build.getProjectId(),
+					build.getBuildTypeId(), recipients);
+			return true;
+		} catch (RuntimeException e) {
+			Utils.logWarn(Utils.LOGGER, "Warm-up skipped %1$s: %2$s",
+					buildType.getBuildTypeId(), e.getMessage());
+			return false;
+		}
+	}
+
+}
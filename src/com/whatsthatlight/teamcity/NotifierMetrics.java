@@ -0,0 +1,223 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+// Local
+import com.whatsthatlight.teamcity.exceptions.InvalidNotificationTypeException;
+
+// Counters and timings of the notifier pipeline, from the events TeamCity
+// raises to the commands leaving for the notification servers, so that it
+// can be seen whether the notifier is keeping up and where the time goes.
+// There is one instance, as the pipeline is shared by the whole plugin; it
+// is exposed over JMX once registered.
+public class NotifierMetrics implements NotifierMetricsMXBean {
+
+	// Name under which the metrics are registered with the platform MBean server
+	public static final String OBJECT_NAME = "com.whatsthatlight.teamcity:type=LightsNotifier,name=Metrics";
+
+	private static final NotifierMetrics INSTANCE = new NotifierMetrics();
+
+	private final AtomicLongArray events = new AtomicLongArray(NotificationType.TEST_RESPONSIBILITY_ASSIGNED + 1);
+	private final LatencyHistogram handlerTime = new LatencyHistogram();
+	private final LatencyHistogram committerResolutionTime = new LatencyHistogram();
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	private final AtomicLong connectionFailures = new AtomicLong();
+	private final AtomicLong lateCommitters = new AtomicLong();
+	// Where the queue gauges come from; null until registered
+	private volatile NotificationDispatcher dispatcher;
+
+	public static NotifierMetrics get() {
+		return INSTANCE;
+	}
+
+	// Expose the metrics over JMX, along with the queue of the dispatcher
+	public void register(NotificationDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				// Left behind by an earlier instance of the plugin
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			Utils.logWarn(Utils.LOGGER,
+					"Metrics will not be available over JMX: %1$s",
+					e.getMessage());
+		}
+	}
+
+	// Withdraw the metrics from JMX, e.g. as the plugin is unloaded, so that
+	// the MBean server doesn't keep it and its dispatcher alive
+	public void unregister() {
+		dispatcher = null;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			Utils.logWarn(Utils.LOGGER,
+					"Metrics could not be withdrawn from JMX: %1$s",
+					e.getMessage());
+		}
+	}
+
+	public void eventReceived(int notificationTypeId) {
+		if (notificationTypeId >= 0 && notificationTypeId < events.length()) {
+			events.incrementAndGet(notificationTypeId);
+		}
+	}
+
+	public void handled(long nanos) {
+		handlerTime.record(nanos);
+	}
+
+	public void committersResolved(long nanos) {
+		committerResolutionTime.record(nanos);
+	}
+
+	// An event went out before the committers of its build were found
+	public void committersLate() {
+		lateCommitters.incrementAndGet();
+	}
+
+	public void sent(long nanos) {
+		sendLatency.record(nanos);
+	}
+
+	public void connectionFailed() {
+		connectionFailures.incrementAndGet();
+	}
+
+	public Map<String, Long> getEventCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < events.length(); i++) {
+			try {
+				counts.put(NotificationType.getName(i), Long.valueOf(events
+						.get(i)));
+			} catch (InvalidNotificationTypeException e) {
+				// Not every number is a notification type
+			}
+		}
+		return counts;
+	}
+
+	public LatencyHistogram.Snapshot getHandlerTime() {
+		return handlerTime.getSnapshot();
+	}
+
+	public LatencyHistogram.Snapshot getCommitterResolutionTime() {
+		return committerResolutionTime.getSnapshot();
+	}
+
+	public LatencyHistogram.Snapshot getSendLatency() {
+		return sendLatency.getSnapshot();
+	}
+
+	public long getConnectionFailures() {
+		return connectionFailures.get();
+	}
+
+	public long getLateCommitterCount() {
+		return lateCommitters.get();
+	}
+
+	public Map<String, String> getEndpointStates() {
+		Map<String, String> states = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, CircuitBreaker.State> state : Utils
+				.getEndpointStates().entrySet()) {
+			states.put(state.getKey(), state.getValue().name());
+		}
+		return states;
+	}
+
+	public int getQueueDepth() {
+		NotificationDispatcher d = dispatcher;
+		return d == null ? 0 : d.getQueueDepth();
+	}
+
+	public long getDroppedCount() {
+		NotificationDispatcher d = dispatcher;
+		return d == null ? 0 : d.getDroppedCount();
+	}
+
+	public long getCoalescedCount() {
+		NotificationDispatcher d = dispatcher;
+		return d == null ? 0 : d.getCoalescedCount();
+	}
+
+	public long getThrottledCount() {
+		NotificationDispatcher d = dispatcher;
+		return d == null ? 0 : d.getThrottledCount();
+	}
+
+	public String dump() {
+		StringBuilder dump = new StringBuilder(Utils.NAME).append(" metrics\n");
+		for (Map.Entry<String, Long> count : getEventCounts().entrySet()) {
+			if (count.getValue().longValue() > 0) {
+				dump.append(String.format("  events.%1$s: %2$s\n", count
+						.getKey(), count.getValue()));
+			}
+		}
+		dump.append(String.format("  handlerTime: %1$s\n", getHandlerTime()));
+		dump.append(String.format("  committerResolutionTime: %1$s\n",
+				getCommitterResolutionTime()));
+		dump.append(String.format("  lateCommitters: %1$s\n",
+				getLateCommitterCount()));
+		dump.append(String.format("  sendLatency: %1$s\n", getSendLatency()));
+		dump.append(String.format("  connectionFailures: %1$s\n",
+				getConnectionFailures()));
+		for (Map.Entry<String, String> state : getEndpointStates().entrySet()) {
+			dump.append(String.format("  endpoints.%1$s: %2$s\n", state
+					.getKey(), state.getValue()));
+		}
+		dump.append(String.format("  queueDepth: %1$s\n", getQueueDepth()));
+		dump.append(String.format("  dropped: %1$s\n", getDroppedCount()));
+		dump.append(String.format("  coalesced: %1$s\n", getCoalescedCount()));
+		dump.append(String.format("  throttled: %1$s\n", getThrottledCount()));
+		return dump.toString();
+	}
+
+	// The queue gauges and the dispatcher's counters are not reset
+	public void reset() {
+		for (int i = 0; i < events.length(); i++) {
+			events.set(i, 0);
+		}
+		handlerTime.reset();
+		committerResolutionTime.reset();
+		sendLatency.reset();
+		connectionFailures.set(0);
+		lateCommitters.set(0);
+	}
+
+	public String toString() {
+		return dump();
+	}
+
+}
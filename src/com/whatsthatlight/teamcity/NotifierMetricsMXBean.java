@@ -0,0 +1,66 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity;
+
+// Java
+import java.util.Map;
+
+// What the notifier exposes over JMX; durations are in microseconds
+public interface NotifierMetricsMXBean {
+
+	// Events received from TeamCity, by notification type
+	Map<String, Long> getEventCounts();
+
+	// Time spent handling an event on a TeamCity event thread
+	LatencyHistogram.Snapshot getHandlerTime();
+
+	// Time spent finding the committers of a build
+	LatencyHistogram.Snapshot getCommitterResolutionTime();
+
+	// Events sent before the committers of their build were found, as that
+	// took longer than the budget
+	long getLateCommitterCount();
+
+	// Time spent sending a batch to the notification servers
+	LatencyHistogram.Snapshot getSendLatency();
+
+	// Sends to a notification server that failed
+	long getConnectionFailures();
+
+	// Whether each notification server is being sent to (CLOSED), backed off
+	// from (OPEN), or probed (HALF_OPEN)
+	Map<String, String> getEndpointStates();
+
+	// Commands waiting for the sender thread
+	int getQueueDepth();
+
+	// Commands discarded because the queue was full
+	long getDroppedCount();
+
+	// Commands replaced by a newer state of the same build configuration
+	long getCoalescedCount();
+
+	// Build states held back because their build configuration, or all of
+	// them together, changed state too often
+	long getThrottledCount();
+
+	// All of the above as text
+	String dump();
+
+	void reset();
+
+}
@@ -17,20 +17,22 @@ limitations under the License.
 package com.whatsthatlight.teamcity;
 
 // Java
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.Socket;
-import java.lang.reflect.*;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 // Jetbrains
-import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
 import com.intellij.openapi.diagnostic.Logger;
@@ -38,11 +40,23 @@ import com.intellij.openapi.diagnostic.Logger;
 public class Utils {
 
 	// Command terminator
-	private static final String CMD_TERM = "!";
+	static final String CMD_TERM = "!";
 	// Command terminator
-	private static final String CMD_SEP = ";";
+	static final String CMD_SEP = ";";
 	// Key-value separator
-	private static final String CMD_KV_SEP = "=";
+	static final String CMD_KV_SEP = "=";
+	// Keys, encoded once
+	private static final byte[] KEY_NOTIFICATION_TYPE_ID = CommandEncoder.key("notificationtypeid");
+	private static final byte[] KEY_PROJECT_ID = CommandEncoder.key("projectid");
+	private static final byte[] KEY_BUILD_CONFIG_ID = CommandEncoder.key("buildconfigid");
+	private static final byte[] KEY_RECIPIENTS = CommandEncoder.key("recipients");
+	private static final byte[] KEY_USERNAME = CommandEncoder.key("username");
+	private static final byte[] KEY_STATE = CommandEncoder.key("state");
+	private static final byte[] KEY_REQUEST_TYPE_ID = CommandEncoder.key("requesttypeid");
+	private static final byte[] KEY_STATUS = CommandEncoder.key("status");
+	private static final byte[] KEY_BATCH = CommandEncoder.key("batch");
+	private static final byte[] KEY_BINARY = CommandEncoder.key("binary");
+	private static final byte[] KEY_COUNT = CommandEncoder.key("count");
 	// Host
 	public static final String HOST = "localhost";
 	// Host port
@@ -53,104 +67,387 @@ public class Utils {
 	// The type of this notifier (anything unique, but not
 	// longer than 20 characters, which is TC 6.5's limit)
 	public static final String TYPE = "Build Lights";
+	// Prefix of the TeamCity internal properties used to configure the plugin
+	public static final String PROPERTY_PREFIX = "teamcity.lightsNotifier.";
+	// Name of the log category
+	public static final String LOGGER_NAME = "com.whatsthatlight.teamcity";
 	// The TeamCity logger to use
-	public static Logger LOGGER = Logger.getInstance("com.whatsthatlight.teamcity");
+	public static Logger LOGGER = Logger.getInstance(LOGGER_NAME);
+	// The logger as created, before anything replaced it
+	private static final Logger DEFAULT_LOGGER = LOGGER;
+	// The log4j category behind it, which knows its level
+	private static final org.apache.log4j.Logger CATEGORY = org.apache.log4j.Logger.getLogger(LOGGER_NAME);
+	// The notification servers
+	private static final List<NotificationEndpoint> ENDPOINTS = NotificationEndpoint.create();
+	// Which notification servers hear about which project
+	private static final NotificationRouter<NotificationEndpoint> ROUTER = NotificationRouter.create(ENDPOINTS);
+	static {
+		for (NotificationEndpoint endpoint : ENDPOINTS) {
+			endpoint.setRouter(ROUTER);
+		}
+	}
+	// Sends to all notification servers at once
+	private static final NotificationFanOut FAN_OUT = new NotificationFanOut();
+	// How long a send to a notification server is waited for (ms)
+	private static final long PATIENCE = NotificationFanOut.getPatience();
 	
 	// Notify
-	public synchronized static void notifyHost(String command) {
+	public static void notifyHost(String command) {
+		notifyHost(Collections.singletonList(new Notification(command)));
+	}
+
+	// Notify the notification servers each command is routed to, with
+	// several commands at once, in a single batch frame if the server
+	// supports it
+	public synchronized static void notifyHost(List<Notification> notifications) {
 		// TODO: If running on CI, don't try to connect and send; use an environment variable
-		logInfo(LOGGER, String.format("Notify host %1$s on port %2$s: %3$s",
-				HOST, PORT, command));
-		try {
-			Socket s = new Socket(HOST, PORT);
-			BufferedOutputStream bos = new BufferedOutputStream(
-					s.getOutputStream());
-			OutputStreamWriter osw = new OutputStreamWriter(bos, "US-ASCII");
-			osw.write(command);
-			osw.flush();
-			osw.close();
-			s.close();
-		} catch (Exception e) {
-			logWarn(LOGGER, String.format(
-					"Unable to connect to host %1$s on port %2$s: %3$s",
-					HOST, PORT, e.getMessage()));
+		if (isVerbose()) {
+			StringBuilder frame = new StringBuilder();
+			for (Notification notification : notifications) {
+				frame.append(notification.getCommand());
+			}
+			logDebug(LOGGER, "Notify %1$s: %2$s", ENDPOINTS, frame);
+		}
+		Map<NotificationEndpoint, List<Notification>> routed = route(notifications);
+		long start = System.nanoTime();
+		// A server that is still busy with an earlier send gets what is new
+		// once it's done; what it missed goes out as soon as it is
+		boolean started;
+		do {
+			started = false;
+			for (NotificationEndpoint endpoint : ENDPOINTS) {
+				List<Notification> forEndpoint = routed.remove(endpoint);
+				if (forEndpoint == null) {
+					if (!endpoint.hasHeld()) {
+						continue;
+					}
+					forEndpoint = Collections.emptyList();
+				}
+				started |= startSend(endpoint, forEndpoint);
+			}
+			FAN_OUT.run(PATIENCE);
+		} while (started && hasHeldForIdle());
+		NotifierMetrics.get().sent(System.nanoTime() - start);
+	}
+
+	// Spool notifications for the notification servers they are routed to,
+	// as they won't be sent, e.g. as the plugin is unloaded
+	public synchronized static void spool(List<Notification> notifications) {
+		for (Map.Entry<NotificationEndpoint, List<Notification>> routed : route(
+				notifications).entrySet()) {
+			routed.getKey().spool(routed.getValue());
+		}
+	}
+
+	// Let go of the connections to the notification servers and of the
+	// threads behind them, e.g. as the plugin is unloaded; sends under way
+	// are given up and, like what was held for a busy server, spooled.
+	// Whatever is sent afterwards opens them again.
+	public synchronized static void shutdown() {
+		FAN_OUT.close();
+		for (NotificationEndpoint endpoint : ENDPOINTS) {
+			endpoint.close();
+		}
+		NotificationConnection.shutdownResolver();
+	}
+
+	// Whether sends to the notification servers are still under way, or
+	// waiting for them to finish
+	public synchronized static boolean isSendPending() {
+		if (FAN_OUT.isPending()) {
+			return true;
+		}
+		for (NotificationEndpoint endpoint : ENDPOINTS) {
+			if (endpoint.hasHeld()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Start sending to a notification server, unless a send to it is still
+	// under way; returns whether it was started
+	private static boolean startSend(final NotificationEndpoint endpoint,
+			List<Notification> notifications) {
+		NotificationConnection connection = endpoint.getConnection();
+		if (connection != null && FAN_OUT.isBusy(connection)) {
+			endpoint.hold(notifications);
+			return false;
+		}
+		final List<Notification> all = endpoint.takeHeld(notifications);
+		long now = System.currentTimeMillis();
+		List<byte[]> prepared = endpoint.prepare(all, now);
+		if (prepared == null) {
+			return false;
+		}
+		if (connection == null) {
+			try {
+				endpoint.sendDatagrams(prepared);
+				endpoint.delivered();
+			} catch (IOException e) {
+				endpoint.failed(all, e, now);
+			}
+			return true;
+		}
+		FAN_OUT.start(connection, prepared, new NotificationFanOut.Listener() {
+			public void delivered() {
+				endpoint.delivered();
+			}
+
+			public void failed(IOException e) {
+				endpoint.failed(all, e, System.currentTimeMillis());
+			}
+		});
+		return true;
+	}
+
+	// The notifications for each notification server, in order
+	private static Map<NotificationEndpoint, List<Notification>> route(
+			List<Notification> notifications) {
+		Map<NotificationEndpoint, List<Notification>> routed = new LinkedHashMap<NotificationEndpoint, List<Notification>>();
+		for (Notification notification : notifications) {
+			for (NotificationEndpoint endpoint : ROUTER.route(notification
+					.getProjectId())) {
+				List<Notification> forEndpoint = routed.get(endpoint);
+				if (forEndpoint == null) {
+					forEndpoint = new ArrayList<Notification>(notifications.size());
+					routed.put(endpoint, forEndpoint);
+				}
+				forEndpoint.add(notification);
+			}
+		}
+		return routed;
+	}
+
+	private static boolean hasHeldForIdle() {
+		for (NotificationEndpoint endpoint : ENDPOINTS) {
+			if (endpoint.hasHeld()
+					&& (endpoint.getConnection() == null || !FAN_OUT
+							.isBusy(endpoint.getConnection()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Bring every notification server up to date with the snapshot the next
+	// time it's sent to
+	public static void resyncEndpoints() {
+		for (NotificationEndpoint endpoint : ENDPOINTS) {
+			endpoint.requestResync();
+		}
+	}
+
+	// When the notification server that was delivered to least recently was
+	// last delivered to (ms since the epoch), or zero if one never was
+	public static long getQuietSince() {
+		long quietSince = Long.MAX_VALUE;
+		for (NotificationEndpoint endpoint : ENDPOINTS) {
+			quietSince = Math.min(quietSince, endpoint.getLastDeliveredAt());
+		}
+		return quietSince == Long.MAX_VALUE ? 0 : quietSince;
+	}
+
+	// Whether each notification server is being sent to, backed off from,
+	// or probed
+	public static Map<String, CircuitBreaker.State> getEndpointStates() {
+		Map<String, CircuitBreaker.State> states = new LinkedHashMap<String, CircuitBreaker.State>();
+		for (NotificationEndpoint endpoint : ENDPOINTS) {
+			states.put(endpoint.toString(), endpoint.getState());
+		}
+		return states;
+	}
+
+	// Whether messages of the given level get written by the logger.
+	// TeamCity's logger can only tell for DEBUG (which implies the rest).
+	// Ours writes to the log4j category of the same name, which can tell for
+	// any level; any other logger is left to decide for itself.
+	public static boolean isEnabledFor(Logger logger, org.apache.log4j.Level level) {
+		if (logger.isDebugEnabled()) {
+			return true;
+		}
+		if (logger == DEFAULT_LOGGER) {
+			return CATEGORY.isEnabledFor(level);
+		}
+		return true;
+	}
+
+	// Whether the notifier logs every event and command (at DEBUG)
+	public static boolean isVerbose() {
+		return LOGGER.isDebugEnabled();
+	}
+
+	public static void logDebug(Logger logger, String message) {
+		if (logger.isDebugEnabled()) {
+			logger.debug(message);
+		}
+	}
+
+	// The message is only formatted if it gets written
+	public static void logDebug(Logger logger, String format, Object... args) {
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format(format, args));
 		}
 	}
 
 	public static void logInfo(Logger logger, String message) {
 		logger.info(message);
 	}
+
+	public static void logInfo(Logger logger, String format, Object... args) {
+		if (isEnabledFor(logger, org.apache.log4j.Level.INFO)) {
+			logger.info(String.format(format, args));
+		}
+	}
 	
 	public static void logWarn(Logger logger, String message) {
 		logger.warn(message);
 	}
+
+	public static void logWarn(Logger logger, String format, Object... args) {
+		if (isEnabledFor(logger, org.apache.log4j.Level.WARN)) {
+			logger.warn(String.format(format, args));
+		}
+	}
 	
 	public static void logError(Logger logger, String message) {
 		logger.error(message);
 	}
+
+	public static void logError(Logger logger, String format, Object... args) {
+		logger.error(String.format(format, args));
+	}
 	
 	public static void logStackTrace(Logger logger, Exception ex) {
 		StringWriter sw = new StringWriter();
 		PrintWriter pw = new PrintWriter(sw);
 		ex.printStackTrace(pw);
-		Utils.logError(logger, sw.toString());
 		pw.close();
-		try {
-			sw.close();
-		} catch (IOException e) {
-			// From http://docs.oracle.com/javase/1.4.2/docs/api/java/io/StringWriter.html#close():
-			// Closing a StringWriter has no effect. The methods in this 
-			// class can be called after the stream has been closed without 
-			// generating an IOException.
-		}
-		logger.error(NAME + " - " + pw.toString());
+		logger.error(NAME + " - " + sw.toString());
 	}
 	
 	public static String createBuildNotificationCommand(int notificationTypeId, String projectId, String buildConfigId, String recipients) {
-		LinkedList<SimpleEntry<String, String>> list = new LinkedList<SimpleEntry<String, String>>();
-		list.add(new SimpleEntry<String, String>("notificationtypeid", Integer.toString(notificationTypeId)));
-		list.add(new SimpleEntry<String, String>("projectid", projectId));
-		list.add(new SimpleEntry<String, String>("buildconfigid", buildConfigId));
-		list.add(new SimpleEntry<String, String>("recipients", recipients));
-		return createCommand(list);
+		return buildNotificationCommand(notificationTypeId, projectId, buildConfigId, recipients).toString();
+	}
+	
+	public static byte[] encodeBuildNotificationCommand(int notificationTypeId, String projectId, String buildConfigId, String recipients) {
+		return buildNotificationCommand(notificationTypeId, projectId, buildConfigId, recipients).toByteArray();
+	}
+	
+	private static CommandEncoder buildNotificationCommand(int notificationTypeId, String projectId, String buildConfigId, String recipients) {
+		return CommandEncoder.get()
+				.put(KEY_NOTIFICATION_TYPE_ID, notificationTypeId)
+				.put(KEY_PROJECT_ID, projectId)
+				.put(KEY_BUILD_CONFIG_ID, buildConfigId)
+				.put(KEY_RECIPIENTS, recipients)
+				.end();
 	}
 	
 	public static String createResponsibilityAssignedNotificationCommand(int notificationTypeId, String projectId, String buildConfigId, String username, String state) {
-		LinkedList<SimpleEntry<String, String>> list = new LinkedList<SimpleEntry<String, String>>();
-		list.add(new SimpleEntry<String, String>("notificationtypeid", Integer.toString(notificationTypeId)));
-		list.add(new SimpleEntry<String, String>("projectid", projectId));
-		list.add(new SimpleEntry<String, String>("buildconfigid", buildConfigId));
-		list.add(new SimpleEntry<String, String>("username", username));
-		list.add(new SimpleEntry<String, String>("state", state));
-		return createCommand(list);
+		return responsibilityAssignedNotificationCommand(notificationTypeId, projectId, buildConfigId, username, state).toString();
+	}
+	
+	public static byte[] encodeResponsibilityAssignedNotificationCommand(int notificationTypeId, String projectId, String buildConfigId, String username, String state) {
+		return responsibilityAssignedNotificationCommand(notificationTypeId, projectId, buildConfigId, username, state).toByteArray();
+	}
+	
+	private static CommandEncoder responsibilityAssignedNotificationCommand(int notificationTypeId, String projectId, String buildConfigId, String username, String state) {
+		return CommandEncoder.get()
+				.put(KEY_NOTIFICATION_TYPE_ID, notificationTypeId)
+				.put(KEY_PROJECT_ID, projectId)
+				.put(KEY_BUILD_CONFIG_ID, buildConfigId)
+				.put(KEY_USERNAME, username)
+				.put(KEY_STATE, state)
+				.end();
 	}
 	
 	public static String createServerUpCommand() {
-		LinkedList<SimpleEntry<String, String>> list = new LinkedList<SimpleEntry<String, String>>();
-		list.add(new SimpleEntry<String, String>("requesttypeid", "4"));
-		list.add(new SimpleEntry<String, String>("status", "1"));
-		return createCommand(list);
+		return CommandEncoder.get()
+				.put(KEY_REQUEST_TYPE_ID, 4)
+				.put(KEY_STATUS, 1)
+				.end().toString();
 	}
 	
+	public static String createServerDownCommand() {
+		return CommandEncoder.get()
+				.put(KEY_REQUEST_TYPE_ID, 4)
+				.put(KEY_STATUS, 0)
+				.end().toString();
+	}
+	
+	public static String createSnapshotCommand(Collection<BuildStateSnapshot.BuildState> states) {
+		return snapshotCommand(states).toString();
+	}
+	
+	public static byte[] encodeSnapshotCommand(Collection<BuildStateSnapshot.BuildState> states) {
+		return snapshotCommand(states).toByteArray();
+	}
+	
+	// The state of many build configurations at once: the keys of a build
+	// notification are numbered, e.g. projectid0=...;projectid1=...
+	private static CommandEncoder snapshotCommand(Collection<BuildStateSnapshot.BuildState> states) {
+		CommandEncoder command = CommandEncoder.get()
+				.put(KEY_REQUEST_TYPE_ID, 6)
+				.put(KEY_COUNT, states.size());
+		int i = 0;
+		for (BuildStateSnapshot.BuildState state : states) {
+			command.put(CommandEncoder.key("notificationtypeid" + i), state.getNotificationTypeId())
+					.put(CommandEncoder.key("projectid" + i), state.getProjectId())
+					.put(CommandEncoder.key("buildconfigid" + i), state.getBuildConfigId())
+					.put(CommandEncoder.key("recipients" + i), state.getRecipients());
+			i++;
+		}
+		return command.end();
+	}
+	
+	// Asks the server what it supports; a server that can read a stream of
+	// commands answers with batch=1
+	public static String createCapabilitiesCommand() {
+		return createCapabilitiesCommand(false);
+	}
+	
+	// Also offers the binary format, which a server that takes it answers
+	// with binary=1
+	public static String createCapabilitiesCommand(boolean binary) {
+		CommandEncoder command = CommandEncoder.get()
+				.put(KEY_REQUEST_TYPE_ID, 5)
+				.put(KEY_BATCH, 1);
+		if (binary) {
+			command.put(KEY_BINARY, 1);
+		}
+		return command.end().toString();
+	}
+	
+	// Commands are framed by the terminator alone, so the encoder drops it
+	// from values, or it would cut its command short on a shared connection
 	public static String createCommand(LinkedList<SimpleEntry<String, String>> list) {
-		StringBuffer command = new StringBuffer();
-		Iterator<SimpleEntry<String, String>> iter = list.iterator();
-		while (iter.hasNext()) {
-			SimpleEntry<String, String> entry = iter.next();
-			command.append(entry.getKey());
-			command.append(CMD_KV_SEP);
-			command.append(entry.getValue());
-			if (iter.hasNext()) {
-				command.append(CMD_SEP);
-			}
+		CommandEncoder command = CommandEncoder.get();
+		for (SimpleEntry<String, String> entry : list) {
+			command.put(CommandEncoder.key(entry.getKey()), entry.getValue());
 		}
-		command.append(CMD_TERM);
-		return command.toString();
+		return command.end().toString();
+	}
+
+	// Turns an element of a collection into its value in a CSV
+	public interface CsvValue<T> {
+		String of(T element);
 	}
 
-	public static String getUsersThatCommittedToBuild(SRunningBuild build)
-			throws IllegalAccessException, InvocationTargetException,
-			NoSuchMethodException {
+	// The username of a user
+	public static final CsvValue<SUser> USERNAME = new CsvValue<SUser>() {
+		public String of(SUser user) {
+			return user.getUsername();
+		}
+	};
+
+	// The element itself
+	public static final CsvValue<Object> TO_STRING = new CsvValue<Object>() {
+		public String of(Object element) {
+			return String.valueOf(element);
+		}
+	};
+
+	public static String getUsersThatCommittedToBuild(SBuild build) {
 		// BUG (TODO): If there never was a successful build, this won't work, 
 		// e.g. you've created a new project and the first run fails. Also, this
 		// will be an issue for all consecutive builds. You need at least one
@@ -161,24 +458,16 @@ public class Utils {
 				.getUsers());
 	}
 
-	public static String convertUserSetToCsv(Set<SUser> set)
-			throws IllegalAccessException, InvocationTargetException,
-			NoSuchMethodException {
-		return convertSetToCsv(set, SUser.class.getMethod("getUsername"), ",");
+	public static String convertUserSetToCsv(Set<SUser> set) {
+		return convertSetToCsv(set, USERNAME, ",");
 	}
 
-	public static String convertSetToCsv(Set<?> set, Method method,
-			String delimiter) throws IllegalAccessException,
-			InvocationTargetException {
-		StringBuffer builder = new StringBuffer();
-		Iterator<?> iter = set.iterator();
+	public static <T> String convertSetToCsv(Collection<? extends T> set,
+			CsvValue<? super T> value, String delimiter) {
+		StringBuilder builder = new StringBuilder();
+		Iterator<? extends T> iter = set.iterator();
 		while (iter.hasNext()) {
-			Object e = iter.next();
-			if (method != null) {
-				builder.append(method.invoke(e));
-			} else {
-				builder.append(e);
-			}
+			builder.append(value.of(iter.next()));
 			if (!iter.hasNext()) {
 				break;
 			}
@@ -187,9 +476,7 @@ public class Utils {
 		return builder.toString();
 	}
 
-	public static String mergeCsvs(String csv1, String csv2)
-			throws IllegalAccessException, InvocationTargetException,
-			NoSuchMethodException {
+	public static String mergeCsvs(String csv1, String csv2) {
 		if (csv1 == null && csv2 == null) {
 			return "";
 		} else if ((csv1 == null && csv2 != null) || (csv1 != null && csv1.isEmpty() && csv2 != null)) {
@@ -206,11 +493,11 @@ public class Utils {
 			for (String s2 : split2) {
 				set.add(s2);
 			}
-			return convertSetToCsv(set, null, ",");
+			return convertSetToCsv(set, TO_STRING, ",");
 		}
 	}
 
-	public static String tryGetTriggeredByUser(SRunningBuild build) {
+	public static String tryGetTriggeredByUser(SBuild build) {
 		if (build.getTriggeredBy() != null && build.getTriggeredBy().getUser() != null) {
 			return build.getTriggeredBy().getUser().getUsername();
 		} else {
@@ -0,0 +1,220 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Local
+import com.whatsthatlight.teamcity.BinaryCommandEncoder;
+import com.whatsthatlight.teamcity.BuildStateSnapshot;
+import com.whatsthatlight.teamcity.NotificationConnection;
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class BinaryCommandEncoderTest {
+
+	private static final byte DEFINE_SET = 1;
+
+	private BinaryCommandEncoder encoder;
+
+	@Before
+	public void setUp() {
+		encoder = new BinaryCommandEncoder();
+	}
+
+	@Test
+	public void testFirstUseDefinesStrings() throws Exception {
+		byte[] frame = encoder.encode(ascii("projectid=p1;state=on!"));
+		byte[] expected = bytes(
+				// Length, pairs
+				20, 2,
+				// Key projectid, defined as handle 2
+				1, 9, 'p', 'r', 'o', 'j', 'e', 'c', 't', 'i', 'd',
+				// Value p1, defined as handle 3
+				1, 2, 'p', '1',
+				// Key state, defined as handle 4, literal value on
+				1, 5, 's', 't', 'a', 't', 'e', 2, 'o', 'n');
+		expected[0] = (byte) (expected.length - 1);
+		assertArrayEquals(expected, frame);
+	}
+
+	@Test
+	public void testLaterUseReferencesHandles() throws Exception {
+		encoder.encode(ascii("projectid=p1;state=on!"));
+		assertArrayEquals(bytes(7, 2, 2, 3, 4, 2, 'o', 'n'),
+				encoder.encode(ascii("projectid=p1;state=on!")));
+	}
+
+	@Test
+	public void testNotificationTypeIsVarint() throws Exception {
+		encoder.encode(ascii("notificationtypeid=0!"));
+		assertArrayEquals(bytes(3, 1, 2,
+				NotificationType.BUILD_RESPONSIBILITY_ASSIGNED), encoder.encode(ascii(
+				"notificationtypeid=" + NotificationType.BUILD_RESPONSIBILITY_ASSIGNED + "!")));
+		assertArrayEquals(bytes(4, 1, 2, 0xac, 0x02), encoder.encode(ascii(
+				"notificationtypeid=300!")));
+	}
+
+	@Test
+	public void testBuildNotificationShrinks() throws Exception {
+		byte[] text = ascii(Utils.createBuildNotificationCommand(
+				NotificationType.BUILD_SUCCESSFUL, "project1", "buildconfig1",
+				"user1,user2"));
+		encoder.encode(text);
+		assertTrue(encoder.encode(text).length < text.length / 2);
+	}
+
+	@Test
+	public void testFirstUseDefinesRecipients() throws Exception {
+		byte[] frame = encoder.encode(ascii("recipients=u2,u1!"));
+		byte[] expected = bytes(
+				// Length, pairs
+				0, 1,
+				// Key recipients, defined as handle 2
+				1, 10, 'r', 'e', 'c', 'i', 'p', 'i', 'e', 'n', 't', 's',
+				// Set defined as set handle 3, of two names in order, defined
+				// as handles 3 and 4
+				1, 2, 1, 2, 'u', '1', 1, 2, 'u', '2');
+		expected[0] = (byte) (expected.length - 1);
+		assertArrayEquals(expected, frame);
+	}
+
+	@Test
+	public void testSameRecipientsReferenceSetHandle() throws Exception {
+		encoder.encode(ascii("recipients=u1,u2!"));
+		// In any order
+		assertArrayEquals(bytes(3, 1, 2, 3),
+				encoder.encode(ascii("recipients=u2,u1!")));
+	}
+
+	@Test
+	public void testChangedRecipientsAreSentAsDiff() throws Exception {
+		encoder.encode(ascii("buildconfigid=b1;recipients=u1,u2,u3!"));
+		byte[] frame = encoder.encode(ascii("buildconfigid=b1;recipients=u1,u2,u4!"));
+		byte[] expected = bytes(
+				// Length, pairs, buildconfigid b1
+				0, 2, 2, 3,
+				// Key recipients, diff against set handle 3
+				4, 2, 3,
+				// Added u4, defined as handle 8
+				1, 1, 2, 'u', '4',
+				// Removed u3
+				1, 7);
+		expected[0] = (byte) (expected.length - 1);
+		assertArrayEquals(expected, frame);
+		// The result got a set handle of its own
+		assertArrayEquals(bytes(5, 2, 2, 3, 4, 4),
+				encoder.encode(ascii("buildconfigid=b1;recipients=u4,u2,u1!")));
+	}
+
+	@Test
+	public void testDiffIsOnlyAgainstSameBuildConfig() throws Exception {
+		encoder.encode(ascii("buildconfigid=b1;recipients=u1,u2,u3!"));
+		byte[] frame = encoder.encode(ascii("buildconfigid=b2;recipients=u1,u2,u4!"));
+		// Defined in full: three names, two of them known
+		assertEquals(DEFINE_SET, frame[frame.length - 8]);
+	}
+
+	@Test
+	public void testRecipientsDiffOnlyWhenShorter() throws Exception {
+		encoder.encode(ascii("buildconfigid=b1;recipients=u1!"));
+		byte[] frame = encoder.encode(ascii("buildconfigid=b1;recipients=u2!"));
+		// Length, pairs, buildconfigid, recipients key, then the set in full
+		assertEquals(DEFINE_SET, frame[5]);
+	}
+
+	@Test
+	public void testRecipientsThatDontReadBackGoAsText() throws Exception {
+		byte[] text = ascii("recipients=u1,u1!");
+		byte[] frame = encoder.encode(text);
+		assertEquals(0, frame[1]);
+		text = ascii("recipients=u1,,u2!");
+		frame = encoder.encode(text);
+		assertEquals(0, frame[1]);
+		// Nothing was interned for them
+		assertEquals(1, encoder.encode(ascii("recipients=!"))[2]);
+	}
+
+	@Test
+	public void testResetForgetsRecipients() throws Exception {
+		byte[] first = encoder.encode(ascii("buildconfigid=b1;recipients=u1!"));
+		encoder.reset();
+		assertArrayEquals(first, encoder.encode(ascii("buildconfigid=b1;recipients=u1!")));
+	}
+
+	@Test
+	public void testUnknownShapeGoesAsText() throws Exception {
+		byte[] text = ascii("notificationtypeid=x;state=on!");
+		byte[] frame = encoder.encode(text);
+		assertEquals(text.length + 1, frame[0]);
+		assertEquals(0, frame[1]);
+		assertEquals("notificationtypeid=x;state=on!", new String(frame, 2,
+				frame.length - 2, NotificationConnection.ENCODING));
+		// Nothing was interned for it
+		assertArrayEquals(bytes(10, 1, 1, 5, 's', 't', 'a', 't', 'e', 1, '1'),
+				encoder.encode(ascii("state=1!")));
+	}
+
+	@Test
+	public void testSnapshotKeysAreNotInterned() throws Exception {
+		byte[] text = ascii(Utils.createBuildNotificationCommand(
+				NotificationType.BUILD_SUCCESSFUL, "project1", "buildconfig1",
+				"user1"));
+		BinaryCommandEncoder fresh = new BinaryCommandEncoder();
+		fresh.encode(text);
+		byte[] interned = fresh.encode(text);
+		List<BuildStateSnapshot.BuildState> states = new ArrayList<BuildStateSnapshot.BuildState>();
+		for (int i = 0; i < 1100; i++) {
+			states.add(new BuildStateSnapshot.BuildState(
+					NotificationType.BUILD_FAILED, "project" + i,
+					"buildconfig" + i, "user" + i));
+		}
+		encoder.encode(Utils.encodeSnapshotCommand(states));
+		encoder.encode(text);
+		// Still interned after the snapshot, if under other handles
+		assertEquals(interned.length, encoder.encode(text).length);
+	}
+
+	@Test
+	public void testResetForgetsHandles() throws Exception {
+		byte[] first = encoder.encode(ascii("projectid=p1!"));
+		encoder.reset();
+		assertArrayEquals(first, encoder.encode(ascii("projectid=p1!")));
+	}
+
+	private static byte[] ascii(String command)
+			throws UnsupportedEncodingException {
+		return command.getBytes(NotificationConnection.ENCODING);
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.List;
+
+// Local
+import com.whatsthatlight.teamcity.BuildStateSnapshot;
+import com.whatsthatlight.teamcity.NotificationType;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class BuildStateSnapshotTest {
+
+	@Test
+	public void testLatestStateIsKept() {
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_BUILDING, "project1", "buildconfig1", "user1");
+		snapshot.update(NotificationType.BUILD_FAILED, "project1", "buildconfig1", "user1,user2");
+		List<BuildStateSnapshot.BuildState> states = snapshot.getStates();
+		assertEquals(1, states.size());
+		assertEquals(NotificationType.BUILD_FAILED, states.get(0).getNotificationTypeId());
+		assertEquals("user1,user2", states.get(0).getRecipients());
+	}
+
+	@Test
+	public void testBuildConfigsAreKeptApart() {
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_BUILDING, "project1", "buildconfig1", "");
+		snapshot.update(NotificationType.BUILD_BUILDING, "project1", "buildconfig2", "");
+		snapshot.update(NotificationType.BUILD_BUILDING, "project2", "buildconfig1", "");
+		assertEquals(3, snapshot.size());
+	}
+
+	@Test
+	public void testOnlyBuildStatesAreKept() {
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_RESPONSIBILITY_ASSIGNED, "project1", "buildconfig1", "user1");
+		assertTrue(snapshot.isEmpty());
+		assertNull(snapshot.toNotification());
+	}
+
+	@Test
+	public void testRecipientsOfLatestStateAreUpdated() {
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		BuildStateSnapshot.BuildState state = snapshot.update(NotificationType.BUILD_BUILDING, "project1", "buildconfig1", "user1");
+		BuildStateSnapshot.BuildState updated = snapshot.updateRecipients(state, "user1,user2");
+		assertNotNull(updated);
+		assertEquals(NotificationType.BUILD_BUILDING, updated.getNotificationTypeId());
+		assertEquals("user1,user2", snapshot.getStates().get(0).getRecipients());
+	}
+
+	@Test
+	public void testRecipientsOfReplacedStateAreNotUpdated() {
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		BuildStateSnapshot.BuildState state = snapshot.update(NotificationType.BUILD_BUILDING, "project1", "buildconfig1", "user1");
+		snapshot.update(NotificationType.BUILD_SUCCESSFUL, "project1", "buildconfig1", "user3");
+		assertNull(snapshot.updateRecipients(state, "user1,user2"));
+		assertEquals(NotificationType.BUILD_SUCCESSFUL, snapshot.getStates().get(0).getNotificationTypeId());
+		assertEquals("user3", snapshot.getStates().get(0).getRecipients());
+	}
+
+	@Test
+	public void testToNotification() {
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_SUCCESSFUL, "project1", "buildconfig1", "user1");
+		assertEquals("requesttypeid=6;count=1;notificationtypeid0=7;projectid0=project1;buildconfigid0=buildconfig1;recipients0=user1!",
+				snapshot.toNotification().getCommand());
+		assertEquals(NotificationType.NONE, snapshot.toNotification().getNotificationTypeId());
+		snapshot.clear();
+		assertTrue(snapshot.isEmpty());
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.Random;
+
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.CircuitBreaker;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+	@Before
+	public void setUp() {
+		Utils.LOGGER = mock(Logger.class);
+	}
+
+	@Test
+	public void testOpensAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("host", 3, 1000, 60000, new Random(0));
+		breaker.recordFailure(0);
+		breaker.recordFailure(0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest(0));
+		breaker.recordFailure(0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest(0));
+	}
+
+	@Test
+	public void testSuccessResetsFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("host", 2, 1000, 60000, new Random(0));
+		breaker.recordFailure(0);
+		breaker.recordSuccess();
+		breaker.recordFailure(0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testSingleProbeWhenBackoffIsOver() {
+		CircuitBreaker breaker = new CircuitBreaker("host", 1, 1000, 60000, new Random(0));
+		breaker.recordFailure(0);
+		long retryAt = breaker.getRetryAt();
+		assertTrue(retryAt >= 500 && retryAt <= 1000);
+		assertFalse(breaker.allowRequest(retryAt - 1));
+		assertTrue(breaker.allowRequest(retryAt));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest(retryAt));
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest(retryAt));
+	}
+
+	@Test
+	public void testBackoffDoublesUpToMaximum() {
+		CircuitBreaker breaker = new CircuitBreaker("host", 1, 1000, 4000, new Random(0));
+		long now = 0;
+		long[] maxima = { 1000, 2000, 4000, 4000 };
+		for (long max : maxima) {
+			breaker.recordFailure(now);
+			long backoff = breaker.getRetryAt() - now;
+			assertTrue(backoff >= max / 2 && backoff <= max);
+			now = breaker.getRetryAt();
+			assertTrue(breaker.allowRequest(now));
+		}
+	}
+
+}
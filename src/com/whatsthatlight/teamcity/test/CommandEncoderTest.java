@@ -0,0 +1,70 @@
+/**
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Local
+import com.whatsthatlight.teamcity.CommandEncoder;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class CommandEncoderTest {
+
+	private static final byte[] FOO = CommandEncoder.key("foo");
+	private static final byte[] BAR = CommandEncoder.key("bar");
+
+	@Test
+	public void testEncodeCommand() throws Exception {
+		byte[] actual = CommandEncoder.get().put(FOO, "Foo").put(BAR, 42).end().toByteArray();
+		assertArrayEquals("foo=Foo;bar=42!".getBytes("US-ASCII"), actual);
+	}
+
+	@Test
+	public void testEncoderIsReusedAndReset() {
+		CommandEncoder first = CommandEncoder.get();
+		first.put(FOO, "Foo").end();
+		CommandEncoder second = CommandEncoder.get();
+		assertSame(first, second);
+		assertEquals(0, second.length());
+		assertEquals("bar=Bar!", second.put(BAR, "Bar").end().toString());
+	}
+
+	@Test
+	public void testTerminatorIsDroppedFromValues() {
+		assertEquals("foo=FooBar!", CommandEncoder.get().put(FOO, "Foo!Bar").end().toString());
+	}
+
+	@Test
+	public void testNonAsciiEncodedAsQuestionMark() throws Exception {
+		String value = "J\u00fcrgen";
+		byte[] expected = ("foo=" + value + "!").getBytes("US-ASCII");
+		assertArrayEquals(expected, CommandEncoder.get().put(FOO, value).end().toByteArray());
+	}
+
+	@Test
+	public void testBufferGrows() {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			value.append("user").append(i).append(',');
+		}
+		String expected = "foo=" + value + "!";
+		assertEquals(expected, CommandEncoder.get().put(FOO, value.toString()).end().toString());
+	}
+
+}
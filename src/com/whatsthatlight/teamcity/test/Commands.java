@@ -0,0 +1,67 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+// Local
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationConnection;
+import com.whatsthatlight.teamcity.Utils;
+
+// Commands and notifications as the tests send them, and what a server
+// on the other end of the socket reads
+final class Commands {
+
+	private Commands() {
+	}
+
+	static Notification build(int notificationTypeId, String buildConfigId) {
+		return new Notification(notificationTypeId, "project1", buildConfigId,
+				Utils.createBuildNotificationCommand(notificationTypeId,
+						"project1", buildConfigId, "user1"));
+	}
+
+	static List<byte[]> encode(String... commands) throws IOException {
+		List<byte[]> encoded = new ArrayList<byte[]>();
+		for (String command : commands) {
+			encoded.add(command.getBytes(NotificationConnection.ENCODING));
+		}
+		return encoded;
+	}
+
+	static String read(Socket socket, int length) throws IOException {
+		socket.setSoTimeout(5000);
+		InputStream in = socket.getInputStream();
+		byte[] buffer = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int n = in.read(buffer, offset, length - offset);
+			if (n < 0) {
+				break;
+			}
+			offset += n;
+		}
+		return new String(buffer, 0, offset, NotificationConnection.ENCODING);
+	}
+
+}
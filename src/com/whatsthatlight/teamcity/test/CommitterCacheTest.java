@@ -0,0 +1,230 @@
+/**
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Jetbrains
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserSet;
+import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
+
+// Local
+import com.whatsthatlight.teamcity.CommitterCache;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+
+public class CommitterCacheTest {
+
+	@Test
+	public void testCommittersResolvedOncePerBuild() throws Exception {
+		SRunningBuild build = mockBuild(1, "user1");
+		CommitterCache cache = new CommitterCache(60000);
+		assertEquals("user1", cache.get(build));
+		assertEquals("user1", cache.get(build));
+		verify(build, times(1)).getCommitters(any(SelectPrevBuildPolicy.class));
+	}
+
+	@Test
+	public void testEvictedBuildIsResolvedAgain() throws Exception {
+		SRunningBuild build = mockBuild(1, "user1");
+		CommitterCache cache = new CommitterCache(60000);
+		cache.get(build);
+		cache.evict(build);
+		assertEquals(0, cache.size());
+		cache.get(build);
+		verify(build, times(2)).getCommitters(any(SelectPrevBuildPolicy.class));
+	}
+
+	@Test
+	public void testExpiredEntryIsResolvedAgain() throws Exception {
+		SRunningBuild build = mockBuild(1, "user1");
+		CommitterCache cache = new CommitterCache(0);
+		cache.get(build);
+		cache.get(build);
+		verify(build, times(2)).getCommitters(any(SelectPrevBuildPolicy.class));
+	}
+
+	@Test
+	public void testBuildsAreCachedSeparately() throws Exception {
+		CommitterCache cache = new CommitterCache(60000);
+		assertEquals("user1", cache.get(mockBuild(1, "user1")));
+		assertEquals("user2", cache.get(mockBuild(2, "user2")));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testCommittersFoundWithinBudget() throws Exception {
+		SRunningBuild build = mockBuild(1, "user1");
+		CommitterCache cache = new CommitterCache(60000, 1, 1, 5000);
+		try {
+			assertEquals("user1", cache.get(build));
+			assertEquals("user1", cache.get(build));
+			verify(build, times(1)).getCommitters(any(SelectPrevBuildPolicy.class));
+		} finally {
+			cache.shutdown();
+		}
+	}
+
+	@Test
+	public void testCommittersOverBudgetAreCalledBack() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final SRunningBuild build = mockBuild(1, "user1");
+		final UserSet<SUser> userSet = build.getCommitters(any(SelectPrevBuildPolicy.class));
+		when(build.getCommitters(any(SelectPrevBuildPolicy.class))).thenAnswer(
+				new Answer<UserSet<SUser>>() {
+					public UserSet<SUser> answer(InvocationOnMock invocation)
+							throws Throwable {
+						release.await();
+						return userSet;
+					}
+				});
+		CommitterCache cache = new CommitterCache(60000, 1, 1, 10);
+		try {
+			assertNull(cache.get(build));
+			final AtomicReference<String> resolved = new AtomicReference<String>();
+			final CountDownLatch called = new CountDownLatch(1);
+			assertTrue(cache.whenResolved(build, new CommitterCache.Callback() {
+				public void resolved(String committers) {
+					resolved.set(committers);
+					called.countDown();
+				}
+			}));
+			assertNull(resolved.get());
+			release.countDown();
+			assertTrue(called.await(5, TimeUnit.SECONDS));
+			assertEquals("user1", resolved.get());
+			// Known by now, so there's no waiting
+			assertEquals("user1", cache.get(build));
+		} finally {
+			release.countDown();
+			cache.shutdown();
+		}
+	}
+
+	@Test
+	public void testResolvedCommittersAreCalledBackRightAway() throws Exception {
+		SRunningBuild build = mockBuild(1, "user1");
+		CommitterCache cache = new CommitterCache(60000);
+		cache.get(build);
+		final AtomicReference<String> resolved = new AtomicReference<String>();
+		assertTrue(cache.whenResolved(build, new CommitterCache.Callback() {
+			public void resolved(String committers) {
+				resolved.set(committers);
+			}
+		}));
+		assertEquals("user1", resolved.get());
+	}
+
+	@Test
+	public void testNoCallbackForUnknownBuild() throws Exception {
+		CommitterCache cache = new CommitterCache(60000);
+		assertFalse(cache.whenResolved(mockBuild(1, "user1"),
+				new CommitterCache.Callback() {
+					public void resolved(String committers) {
+						fail();
+					}
+				}));
+	}
+
+	@Test
+	public void testBusyPoolFindsCommittersOnCallingThread() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		SRunningBuild slow = mockBuild(1, "user1");
+		final UserSet<SUser> userSet = slow.getCommitters(any(SelectPrevBuildPolicy.class));
+		when(slow.getCommitters(any(SelectPrevBuildPolicy.class))).thenAnswer(
+				new Answer<UserSet<SUser>>() {
+					public UserSet<SUser> answer(InvocationOnMock invocation)
+							throws Throwable {
+						release.await();
+						return userSet;
+					}
+				});
+		CommitterCache cache = new CommitterCache(60000, 1, 1, 10);
+		try {
+			// One build takes the thread, the next the queue
+			assertNull(cache.get(slow));
+			assertNull(cache.get(mockBuild(2, "user2")));
+			assertEquals("user3", cache.get(mockBuild(3, "user3")));
+		} finally {
+			release.countDown();
+			cache.shutdown();
+		}
+	}
+
+	@Test
+	public void testSlowLookupDoesntHoldUpOtherBuilds() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final SRunningBuild slow = mockBuild(1, "user1");
+		final UserSet<SUser> userSet = slow.getCommitters(any(SelectPrevBuildPolicy.class));
+		when(slow.getCommitters(any(SelectPrevBuildPolicy.class))).thenAnswer(
+				new Answer<UserSet<SUser>>() {
+					public UserSet<SUser> answer(InvocationOnMock invocation)
+							throws Throwable {
+						started.countDown();
+						release.await();
+						return userSet;
+					}
+				});
+		// Found on the calling thread
+		final CommitterCache cache = new CommitterCache(60000);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				cache.get(slow);
+			}
+		});
+		thread.start();
+		try {
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			long start = System.currentTimeMillis();
+			assertEquals("user2", cache.get(mockBuild(2, "user2")));
+			assertTrue(System.currentTimeMillis() - start < 1000);
+		} finally {
+			release.countDown();
+			thread.join();
+		}
+	}
+
+	private static SRunningBuild mockBuild(long buildId, String username) {
+		SUser user = mock(SUser.class);
+		when(user.getUsername()).thenReturn(username);
+		Set<SUser> set = new HashSet<SUser>();
+		set.add(user);
+		@SuppressWarnings("unchecked")
+		UserSet<SUser> userSet = mock(UserSet.class);
+		when(userSet.getUsers()).thenReturn(set);
+		SRunningBuild build = mock(SRunningBuild.class);
+		when(build.getBuildId()).thenReturn(buildId);
+		when(build.getCommitters(any(SelectPrevBuildPolicy.class))).thenReturn(userSet);
+		return build;
+	}
+
+}
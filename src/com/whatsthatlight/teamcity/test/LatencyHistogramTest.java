@@ -0,0 +1,63 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Local
+import com.whatsthatlight.teamcity.LatencyHistogram;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0, snapshot.getMean());
+		assertEquals(0, snapshot.getMedian());
+		assertEquals(0, snapshot.getMax());
+	}
+
+	@Test
+	public void testPercentilesAreBucketBounds() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 98; i++) {
+			histogram.record(100 * 1000);
+		}
+		histogram.record(3000 * 1000);
+		histogram.record(5000 * 1000);
+		LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+		assertEquals(100, snapshot.getCount());
+		assertEquals((98 * 100 + 3000 + 5000) / 100, snapshot.getMean());
+		assertEquals(128, snapshot.getMedian());
+		assertEquals(4096, snapshot.getPercentile99());
+		assertEquals(5000, snapshot.getMax());
+	}
+
+	@Test
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.reset();
+		assertEquals(0, histogram.getSnapshot().getCount());
+		assertEquals(0, histogram.getSnapshot().getMax());
+	}
+
+}
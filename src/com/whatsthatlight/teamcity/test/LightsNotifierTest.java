@@ -61,6 +61,13 @@ public class LightsNotifierTest {
 		assertTrue(n.getDisplayName().equals(Utils.NAME));
 	}
 	
+	@Test
+	public void testDispose() {
+		NotificatorRegistry reg = mock(NotificatorRegistry.class);
+		LightsNotifier n = new LightsNotifier(reg);
+		n.dispose();
+	}
+	
 	@Test
 	public void testGetNotificatorType() {
 		NotificatorRegistry reg = mock(NotificatorRegistry.class);
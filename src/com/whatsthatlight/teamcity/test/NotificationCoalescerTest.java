@@ -0,0 +1,78 @@
+/**
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.List;
+
+// Local
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationCoalescer;
+import com.whatsthatlight.teamcity.NotificationType;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.whatsthatlight.teamcity.test.Commands.build;
+
+public class NotificationCoalescerTest {
+
+	@Test
+	public void testNothingDueWithinWindow() {
+		NotificationCoalescer coalescer = new NotificationCoalescer(100);
+		coalescer.add(build(NotificationType.BUILD_BUILDING, "buildconfig1"), 0);
+		assertEquals(100, coalescer.nextDue());
+		assertTrue(coalescer.takeDue(99).isEmpty());
+		assertEquals(1, coalescer.takeDue(100).size());
+		assertTrue(coalescer.isEmpty());
+	}
+
+	@Test
+	public void testNewerStateReplacesPendingState() {
+		NotificationCoalescer coalescer = new NotificationCoalescer(100);
+		coalescer.add(build(NotificationType.BUILD_BUILDING, "buildconfig1"), 0);
+		coalescer.add(build(NotificationType.BUILD_FAILING, "buildconfig1"), 50);
+		coalescer.add(build(NotificationType.BUILD_FAILED, "buildconfig1"), 150);
+		// The first state keeps its place, so the newest goes out on time
+		List<Notification> due = coalescer.takeDue(100);
+		assertEquals(1, due.size());
+		assertEquals(NotificationType.BUILD_FAILED, due.get(0).getNotificationTypeId());
+		assertEquals(2, coalescer.getCoalescedCount());
+	}
+
+	@Test
+	public void testDifferentBuildConfigsAreKeptApart() {
+		NotificationCoalescer coalescer = new NotificationCoalescer(0);
+		coalescer.add(build(NotificationType.BUILD_BUILDING, "buildconfig1"), 0);
+		coalescer.add(build(NotificationType.BUILD_BUILDING, "buildconfig2"), 0);
+		List<Notification> due = coalescer.takeDue(0);
+		assertEquals(2, due.size());
+		assertEquals("buildconfig1", due.get(0).getBuildConfigId());
+		assertEquals("buildconfig2", due.get(1).getBuildConfigId());
+	}
+
+	@Test
+	public void testResponsibilityIsNeverCoalesced() {
+		NotificationCoalescer coalescer = new NotificationCoalescer(0);
+		coalescer.add(build(NotificationType.BUILD_RESPONSIBILITY_ASSIGNED, "buildconfig1"), 0);
+		coalescer.add(build(NotificationType.BUILD_RESPONSIBILITY_ASSIGNED, "buildconfig1"), 0);
+		assertEquals(2, coalescer.size());
+		assertEquals(0, coalescer.getCoalescedCount());
+	}
+
+}
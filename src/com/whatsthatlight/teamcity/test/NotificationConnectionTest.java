@@ -0,0 +1,214 @@
+/**
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// Local
+import com.whatsthatlight.teamcity.NotificationConnection;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.whatsthatlight.teamcity.test.Commands.encode;
+import static com.whatsthatlight.teamcity.test.Commands.read;
+
+public class NotificationConnectionTest {
+
+	private ServerSocket server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void testCommandsShareOneConnection() throws Exception {
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, true, 0);
+		connection.send("a=1!");
+		connection.send("b=2!");
+		Socket client = server.accept();
+		assertEquals("a=1!b=2!", read(client, 8));
+		assertTrue(connection.isConnected());
+		connection.close();
+		client.close();
+	}
+
+	@Test
+	public void testReconnectsWhenServerHangsUp() throws Exception {
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, true, 0);
+		connection.send("a=1!");
+		Socket first = server.accept();
+		assertEquals("a=1!", read(first, 4));
+		first.close();
+		connection.send("b=2!");
+		Socket second = server.accept();
+		assertEquals("b=2!", read(second, 4));
+		connection.close();
+		second.close();
+	}
+
+	@Test
+	public void testNonPersistentClosesAfterEachCommand() throws Exception {
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, false, 0);
+		connection.send("a=1!");
+		assertFalse(connection.isConnected());
+		Socket client = server.accept();
+		assertEquals("a=1!", read(client, 4));
+		client.close();
+	}
+
+	@Test
+	public void testBatchIsOneFrame() throws Exception {
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, true, 0);
+		connection.send(encode("a=1!", "b=2!", "c=3!"));
+		Socket client = server.accept();
+		assertEquals("a=1!b=2!c=3!", read(client, 12));
+		connection.close();
+		client.close();
+	}
+
+	@Test
+	public void testNegotiatesBatchingWithStreamingServer() throws Exception {
+		final Socket[] accepted = new Socket[1];
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket client = server.accept();
+					accepted[0] = client;
+					read(client, Utils.createCapabilitiesCommand().length());
+					client.getOutputStream().write(
+							"requesttypeid=5;batch=1!".getBytes(NotificationConnection.ENCODING));
+					client.getOutputStream().flush();
+				} catch (IOException e) {
+					// The assertions below will fail
+				}
+			}
+		});
+		serverThread.start();
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, false, 5000);
+		connection.send(encode("a=1!", "b=2!"));
+		serverThread.join(5000);
+		assertEquals(Boolean.TRUE, connection.isStreaming());
+		assertTrue(connection.isConnected());
+		assertEquals("a=1!b=2!", read(accepted[0], 8));
+		connection.close();
+		accepted[0].close();
+	}
+
+	@Test
+	public void testNegotiatesBinaryFormat() throws Exception {
+		final Socket[] accepted = new Socket[1];
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket client = server.accept();
+					accepted[0] = client;
+					read(client, Utils.createCapabilitiesCommand(true).length());
+					client.getOutputStream().write(
+							"requesttypeid=5;batch=1;binary=1!".getBytes(NotificationConnection.ENCODING));
+					client.getOutputStream().flush();
+				} catch (IOException e) {
+					// The assertions below will fail
+				}
+			}
+		});
+		serverThread.start();
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, false, 5000, true);
+		connection.send(encode("status=1!"));
+		serverThread.join(5000);
+		assertTrue(connection.isBinary());
+		// Length 10, one pair, new key "status" with handle 2, value 1
+		assertEquals("\n\u0001\u0001\u0006status\u0001", read(accepted[0], 11));
+		connection.close();
+		accepted[0].close();
+	}
+
+	@Test
+	public void testStreamingServerWithoutBinaryGetsText() throws Exception {
+		final Socket[] accepted = new Socket[1];
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket client = server.accept();
+					accepted[0] = client;
+					read(client, Utils.createCapabilitiesCommand(true).length());
+					client.getOutputStream().write(
+							"requesttypeid=5;batch=1!".getBytes(NotificationConnection.ENCODING));
+					client.getOutputStream().flush();
+				} catch (IOException e) {
+					// The assertions below will fail
+				}
+			}
+		});
+		serverThread.start();
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, false, 5000, true);
+		connection.send(encode("status=1!"));
+		serverThread.join(5000);
+		assertFalse(connection.isBinary());
+		assertEquals("status=1!", read(accepted[0], 9));
+		connection.close();
+		accepted[0].close();
+	}
+
+	@Test
+	public void testOlderServerGetsOneCommandPerConnection() throws Exception {
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", server.getLocalPort(), 5000, true, 100);
+		connection.send(encode("a=1!", "b=2!"));
+		assertEquals(Boolean.FALSE, connection.isStreaming());
+		assertFalse(connection.isConnected());
+		Socket negotiation = server.accept();
+		assertEquals(Utils.createCapabilitiesCommand(), read(negotiation,
+				Utils.createCapabilitiesCommand().length()));
+		Socket first = server.accept();
+		assertEquals("a=1!", read(first, 4));
+		Socket second = server.accept();
+		assertEquals("b=2!", read(second, 4));
+		negotiation.close();
+		first.close();
+		second.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void testSendWithoutServer() throws Exception {
+		int port = server.getLocalPort();
+		server.close();
+		NotificationConnection connection = new NotificationConnection(
+				"localhost", port, 5000, true, 0);
+		connection.send("a=1!");
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+// Local
+import com.whatsthatlight.teamcity.NotificationConnection;
+import com.whatsthatlight.teamcity.NotificationDatagramSender;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.whatsthatlight.teamcity.test.Commands.encode;
+
+public class NotificationDatagramSenderTest {
+
+	private DatagramSocket receiver;
+
+	@Before
+	public void setUp() throws IOException {
+		receiver = new DatagramSocket(0);
+		receiver.setSoTimeout(5000);
+	}
+
+	@After
+	public void tearDown() {
+		receiver.close();
+	}
+
+	@Test
+	public void testCommandsShareOneDatagram() throws Exception {
+		NotificationDatagramSender sender = sender(1400);
+		sender.send(encode("a=1!", "b=2!"));
+		assertEquals("sequence=1;a=1!sequence=2;b=2!", receive());
+		assertEquals(2, sender.getSequence());
+		sender.close();
+	}
+
+	@Test
+	public void testSequenceContinuesAcrossSends() throws Exception {
+		NotificationDatagramSender sender = sender(1400);
+		sender.send(encode("a=1!"));
+		sender.send(encode("b=2!"));
+		assertEquals("sequence=1;a=1!", receive());
+		assertEquals("sequence=2;b=2!", receive());
+		sender.close();
+	}
+
+	@Test
+	public void testSplitsWhenDatagramIsFull() throws Exception {
+		NotificationDatagramSender sender = sender(20);
+		sender.send(encode("a=1!", "b=2!", "looooooooooong=3!"));
+		assertEquals("sequence=1;a=1!", receive());
+		assertEquals("sequence=2;b=2!", receive());
+		assertEquals("sequence=3;looooooooooong=3!", receive());
+		sender.close();
+	}
+
+	@Test
+	public void testToString() {
+		assertEquals("udp://localhost:9191", new NotificationDatagramSender(
+				"localhost", 9191, 1, 1400).toString());
+	}
+
+	private NotificationDatagramSender sender(int maxPacketSize) {
+		return new NotificationDatagramSender("localhost", receiver
+				.getLocalPort(), 1, maxPacketSize);
+	}
+
+	private String receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		receiver.receive(packet);
+		return new String(packet.getData(), 0, packet.getLength(),
+				NotificationConnection.ENCODING);
+	}
+
+}
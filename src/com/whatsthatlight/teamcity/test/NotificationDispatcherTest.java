@@ -0,0 +1,432 @@
+/**
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationDispatcher;
+import com.whatsthatlight.teamcity.NotificationRateLimiter;
+import com.whatsthatlight.teamcity.NotificationSender;
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class NotificationDispatcherTest {
+
+	@Before
+	public void setUp() {
+		Utils.LOGGER = mock(Logger.class);
+	}
+
+	@Test
+	public void testDispatchDeliversInOrder() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final CountDownLatch latch = new CountDownLatch(3);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						for (Notification notification : notifications) {
+							sent.add(notification.getCommand());
+							latch.countDown();
+						}
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.start();
+		assertTrue(dispatcher.dispatch(command("a!")));
+		assertTrue(dispatcher.dispatch(command("b!")));
+		assertTrue(dispatcher.dispatch(command("c!")));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[a!, b!, c!]", sent.toString());
+	}
+
+	@Test
+	public void testDispatchDropNewestWhenFull() {
+		NotificationDispatcher dispatcher = new NotificationDispatcher(2,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				mock(NotificationSender.class));
+		assertTrue(dispatcher.dispatch(command("a!")));
+		assertTrue(dispatcher.dispatch(command("b!")));
+		assertFalse(dispatcher.dispatch(command("c!")));
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(1, dispatcher.getDroppedCount());
+	}
+
+	@Test
+	public void testDispatchDropOldestWhenFull() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final CountDownLatch latch = new CountDownLatch(2);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(2,
+				NotificationDispatcher.OverflowPolicy.DROP_OLDEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						for (Notification notification : notifications) {
+							sent.add(notification.getCommand());
+							latch.countDown();
+						}
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		assertTrue(dispatcher.dispatch(command("a!")));
+		assertTrue(dispatcher.dispatch(command("b!")));
+		assertTrue(dispatcher.dispatch(command("c!")));
+		assertEquals(1, dispatcher.getDroppedCount());
+		dispatcher.start();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[b!, c!]", sent.toString());
+	}
+
+	@Test
+	public void testSenderFailureDoesNotStopDispatcher() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(2);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) throws Exception {
+						latch.countDown();
+						throw new Exception("Connection refused");
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.start();
+		dispatcher.dispatch(command("a!"));
+		dispatcher.dispatch(command("b!"));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testSupersededBuildStatesAreCoalesced() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final CountDownLatch latch = new CountDownLatch(2);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						for (Notification notification : notifications) {
+							sent.add(notification.getCommand());
+							latch.countDown();
+						}
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_BUILDING,
+				"project1", "buildconfig1", "building!"));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_BUILDING,
+				"project1", "buildconfig2", "other!"));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_FAILED,
+				"project1", "buildconfig1", "failed!"));
+		dispatcher.start();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[failed!, other!]", sent.toString());
+		assertEquals(1, dispatcher.getCoalescedCount());
+	}
+
+	@Test
+	public void testStormIsHeldBackToLatestState() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final CountDownLatch first = new CountDownLatch(1);
+		final CountDownLatch latch = new CountDownLatch(2);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						for (Notification notification : notifications) {
+							sent.add(notification.getCommand());
+							first.countDown();
+							latch.countDown();
+						}
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		// One a second per build configuration
+		dispatcher.setRateLimiter(new NotificationRateLimiter(60, 1, 0, 1, 60000));
+		dispatcher.start();
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_BUILDING,
+				"project1", "buildconfig1", "building!"));
+		assertTrue(first.await(5, TimeUnit.SECONDS));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_FAILING,
+				"project1", "buildconfig1", "failing!"));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_FAILED,
+				"project1", "buildconfig1", "failed!"));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[building!, failed!]", sent.toString());
+		assertTrue(dispatcher.getThrottledCount() > 0);
+	}
+
+	@Test
+	public void testFailuresOvertakeBuildsThatStarted() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final CountDownLatch latch = new CountDownLatch(4);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						for (Notification notification : notifications) {
+							sent.add(notification.getCommand());
+							latch.countDown();
+						}
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_BUILDING,
+				"project1", "buildconfig1", "building1!"));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_BUILDING,
+				"project1", "buildconfig2", "building2!"));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_SUCCESSFUL,
+				"project1", "buildconfig3", "successful3!"));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_FAILED,
+				"project1", "buildconfig4", "failed4!"));
+		dispatcher.start();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[failed4!, successful3!, building1!, building2!]", sent.toString());
+	}
+
+	@Test
+	public void testDueCommandsAreBatched() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final CountDownLatch latch = new CountDownLatch(2);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						sent.add(notifications.toString());
+						latch.countDown();
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.setBatching(2, 0);
+		dispatcher.dispatch(command("a!"));
+		dispatcher.dispatch(command("b!"));
+		dispatcher.dispatch(command("c!"));
+		dispatcher.start();
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[[a!, b!], [c!]]", sent.toString());
+	}
+
+	@Test
+	public void testBatchLingersForMoreCommands() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final CountDownLatch latch = new CountDownLatch(1);
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						sent.add(notifications.toString());
+						latch.countDown();
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.setBatching(10, 200);
+		dispatcher.start();
+		dispatcher.dispatch(command("a!"));
+		dispatcher.dispatch(command("b!"));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[[a!, b!]]", sent.toString());
+	}
+
+	@Test
+	public void testCreateFromDefaults() {
+		NotificationDispatcher dispatcher = NotificationDispatcher
+				.create(mock(NotificationSender.class));
+		assertEquals(0, dispatcher.getQueueDepth());
+	}
+
+	@Test
+	public void testShutdownLetsSendFinish() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final List<String> outcome = Collections.synchronizedList(new LinkedList<String>());
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						entered.countDown();
+						try {
+							Thread.sleep(300);
+							outcome.add("sent");
+						} catch (InterruptedException e) {
+							outcome.add("interrupted");
+						}
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.start();
+		dispatcher.dispatch(command("a!"));
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals("[sent]", outcome.toString());
+	}
+
+	@Test
+	public void testWakeUpIsNotCountedAsDropped() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final NotificationDispatcher dispatcher = new NotificationDispatcher(1,
+				NotificationDispatcher.OverflowPolicy.DROP_OLDEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications)
+							throws Exception {
+						entered.countDown();
+						release.await(5, TimeUnit.SECONDS);
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+					}
+				});
+		dispatcher.start();
+		dispatcher.dispatch(command("a!"));
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		Thread stopper = new Thread(new Runnable() {
+			public void run() {
+				dispatcher.shutdown();
+			}
+		});
+		stopper.start();
+		// Wait for the wake-up to fill the queue
+		long deadline = System.currentTimeMillis() + 5000;
+		while (dispatcher.getQueueDepth() == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(dispatcher.dispatch(command("b!")));
+		assertEquals(0, dispatcher.getDroppedCount());
+		release.countDown();
+		stopper.join(5000);
+		verify(Utils.LOGGER, never()).warn(anyString());
+	}
+
+	@Test
+	public void testShutdownSpoolsWhatWasNotSent() throws Exception {
+		final List<String> sent = Collections.synchronizedList(new LinkedList<String>());
+		final List<String> spooled = Collections.synchronizedList(new LinkedList<String>());
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				new NotificationSender() {
+					public void send(List<Notification> notifications) {
+						for (Notification notification : notifications) {
+							sent.add(notification.getCommand());
+						}
+					}
+
+					public boolean isPending() {
+						return false;
+					}
+
+					public void spool(List<Notification> notifications) {
+						for (Notification notification : notifications) {
+							spooled.add(notification.getCommand());
+						}
+					}
+				});
+		// Long enough for the states to still be waiting at shutdown
+		dispatcher.setCoalesceWindow(60000);
+		dispatcher.start();
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_BUILDING,
+				"project1", "buildconfig1", "building!"));
+		dispatcher.dispatch(new Notification(NotificationType.BUILD_FAILED,
+				"project1", "buildconfig2", "failed!"));
+		dispatcher.shutdown();
+		assertEquals("[]", sent.toString());
+		assertEquals("[building!, failed!]", spooled.toString());
+	}
+
+	private static Notification command(String command) {
+		return new Notification(NotificationType.UNKNOWN, "project1",
+				"buildconfig1", command);
+	}
+
+}
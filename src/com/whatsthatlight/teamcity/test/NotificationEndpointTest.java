@@ -0,0 +1,249 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.BuildStateSnapshot;
+import com.whatsthatlight.teamcity.CircuitBreaker;
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationConnection;
+import com.whatsthatlight.teamcity.NotificationEndpoint;
+import com.whatsthatlight.teamcity.NotificationRouter;
+import com.whatsthatlight.teamcity.NotificationSpool;
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class NotificationEndpointTest {
+
+	private File directory;
+	private NotificationSpool spool;
+	private NotificationEndpoint endpoint;
+
+	@Before
+	public void setUp() throws IOException {
+		Utils.LOGGER = mock(Logger.class);
+		directory = File.createTempFile("spool", "");
+		directory.delete();
+		spool = new NotificationSpool(directory, 1024 * 1024, 1024);
+		endpoint = new NotificationEndpoint(new NotificationConnection(
+				"localhost", 9191, 5000, true, 0), new CircuitBreaker(
+				"localhost:9191", 1, 1000, 1000, new Random(0)), spool);
+	}
+
+	@After
+	public void tearDown() {
+		spool.clear();
+		directory.delete();
+	}
+
+	@Test
+	public void testPrepareSendsNotifications() {
+		List<byte[]> commands = endpoint.prepare(Arrays.asList(build("1")), 0);
+		assertEquals(1, commands.size());
+		assertArrayEquals(build("1").getBytes(), commands.get(0));
+	}
+
+	@Test
+	public void testDeliveryIsTimed() {
+		assertEquals(0, endpoint.getLastDeliveredAt());
+		long before = System.currentTimeMillis();
+		endpoint.prepare(Arrays.asList(build("1")), before);
+		endpoint.delivered();
+		assertTrue(endpoint.getLastDeliveredAt() >= before);
+	}
+
+	@Test
+	public void testFailureSpoolsAndBacksOff() {
+		List<Notification> notifications = Arrays.asList(build("1"));
+		endpoint.prepare(notifications, 0);
+		endpoint.failed(notifications, new IOException("refused"), 0);
+		assertEquals(CircuitBreaker.State.OPEN, endpoint.getState());
+		assertFalse(spool.isEmpty());
+		assertNull(endpoint.prepare(Arrays.asList(build("2")), 1));
+	}
+
+	@Test
+	public void testSpooledGoFirstAndAreClearedOnDelivery() throws Exception {
+		List<Notification> notifications = Arrays.asList(build("1"));
+		endpoint.prepare(notifications, 0);
+		endpoint.failed(notifications, new IOException("refused"), 0);
+		List<byte[]> commands = endpoint.prepare(Arrays.asList(build("2")),
+				1000);
+		assertEquals(2, commands.size());
+		assertArrayEquals(build("1").getBytes(), commands.get(0));
+		assertArrayEquals(build("2").getBytes(), commands.get(1));
+		endpoint.delivered();
+		assertTrue(spool.isEmpty());
+		assertEquals(CircuitBreaker.State.CLOSED, endpoint.getState());
+	}
+
+	@Test
+	public void testServerRequestsAreNotSpooled() {
+		List<Notification> notifications = Arrays.asList(new Notification(
+				Utils.createServerUpCommand()));
+		endpoint.prepare(notifications, 0);
+		endpoint.failed(notifications, new IOException("refused"), 0);
+		assertTrue(spool.isEmpty());
+	}
+
+	@Test
+	public void testCloseSpoolsWhatWasHeld() {
+		endpoint.hold(Arrays.asList(build("1")));
+		endpoint.close();
+		assertFalse(endpoint.hasHeld());
+		assertFalse(spool.isEmpty());
+	}
+
+	@Test
+	public void testSnapshotGoesLastToNewServer() {
+		// An older server, which gets a connection per command
+		endpoint = new NotificationEndpoint(new NotificationConnection(
+				"localhost", 9191, 5000, false, 0), new CircuitBreaker(
+				"localhost:9191", 1, 1000, 1000, new Random(0)), spool);
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_FAILED, "project1", "0", "user1");
+		endpoint.setSnapshot(snapshot);
+		List<byte[]> commands = endpoint.prepare(Arrays.asList(build("1")), 0);
+		assertEquals(2, commands.size());
+		assertArrayEquals(build("1").getBytes(), commands.get(0));
+		assertArrayEquals(snapshot.toNotification().getBytes(), commands.get(1));
+		endpoint.delivered();
+		// Once is enough
+		assertEquals(1, endpoint.prepare(Arrays.asList(build("2")), 0).size());
+	}
+
+	@Test
+	public void testSnapshotAfterFailure() {
+		endpoint = new NotificationEndpoint(new NotificationConnection(
+				"localhost", 9191, 5000, false, 0), new CircuitBreaker(
+				"localhost:9191", 1, 1000, 1000, new Random(0)), spool);
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_FAILED, "project1", "0", "user1");
+		endpoint.setSnapshot(snapshot);
+		List<Notification> notifications = Arrays.asList(build("1"));
+		endpoint.prepare(notifications, 0);
+		endpoint.delivered();
+		endpoint.prepare(notifications, 0);
+		endpoint.failed(notifications, new IOException("refused"), 0);
+		List<byte[]> commands = endpoint.prepare(Arrays.asList(build("2")),
+				1000);
+		assertEquals(3, commands.size());
+		assertArrayEquals(snapshot.toNotification().getBytes(), commands.get(2));
+	}
+
+	@Test
+	public void testSnapshotWhenStreamingServerReconnects() {
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_FAILED, "project1", "0", "user1");
+		endpoint.setSnapshot(snapshot);
+		endpoint.prepare(Arrays.asList(build("1")), 0);
+		endpoint.delivered();
+		// Never connected, so the next send is on a new connection
+		assertEquals(2, endpoint.prepare(Arrays.asList(build("2")), 0).size());
+	}
+
+	@Test
+	public void testNoSnapshotWhenEmpty() {
+		endpoint.setSnapshot(new BuildStateSnapshot());
+		assertEquals(1, endpoint.prepare(Arrays.asList(build("1")), 0).size());
+	}
+
+	@Test
+	public void testSnapshotOnlyHoldsRoutedProjects() throws Exception {
+		NotificationEndpoint first = endpoint(9191);
+		NotificationEndpoint second = endpoint(9192);
+		Map<String, List<NotificationEndpoint>> rules = new LinkedHashMap<String, List<NotificationEndpoint>>();
+		rules.put("project1", Arrays.asList(first));
+		rules.put("project2", Arrays.asList(second));
+		NotificationRouter<NotificationEndpoint> router = new NotificationRouter<NotificationEndpoint>(
+				rules, Arrays.asList(first, second),
+				NotificationRouter.NO_PARENTS);
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_FAILED, "project1", "0", "user1");
+		snapshot.update(NotificationType.BUILD_FAILED, "project2", "0", "user1");
+		snapshot.update(NotificationType.BUILD_FAILED, "project3", "0", "user1");
+		for (NotificationEndpoint endpoint : Arrays.asList(first, second)) {
+			endpoint.setSnapshot(snapshot);
+			endpoint.setRouter(router);
+		}
+		String resync = resync(first);
+		assertTrue(resync.contains("=project1;"));
+		assertFalse(resync.contains("=project2;"));
+		// Unrouted projects go everywhere
+		assertTrue(resync.contains("=project3;"));
+		resync = resync(second);
+		assertFalse(resync.contains("=project1;"));
+		assertTrue(resync.contains("=project2;"));
+		assertTrue(resync.contains("=project3;"));
+	}
+
+	@Test
+	public void testNoSnapshotWhenNothingIsRouted() {
+		NotificationEndpoint other = endpoint(9192);
+		endpoint = endpoint(9191);
+		Map<String, List<NotificationEndpoint>> rules = new LinkedHashMap<String, List<NotificationEndpoint>>();
+		rules.put("project1", Arrays.asList(other));
+		BuildStateSnapshot snapshot = new BuildStateSnapshot();
+		snapshot.update(NotificationType.BUILD_FAILED, "project1", "0", "user1");
+		endpoint.setSnapshot(snapshot);
+		endpoint.setRouter(new NotificationRouter<NotificationEndpoint>(rules,
+				Arrays.asList(endpoint, other), NotificationRouter.NO_PARENTS));
+		assertEquals(1, endpoint.prepare(Arrays.asList(build("1")), 0).size());
+	}
+
+	// An older server, which gets a connection per command, and thus the
+	// snapshot with the first send
+	private static NotificationEndpoint endpoint(int port) {
+		return new NotificationEndpoint(new NotificationConnection(
+				"localhost", port, 5000, false, 0), new CircuitBreaker(
+				"localhost:" + port, 1, 1000, 1000, new Random(0)), null);
+	}
+
+	private static String resync(NotificationEndpoint endpoint)
+			throws IOException {
+		List<byte[]> commands = endpoint.prepare(
+				Collections.<Notification> emptyList(), 0);
+		assertEquals(1, commands.size());
+		return new String(commands.get(0), NotificationConnection.ENCODING);
+	}
+
+	private static Notification build(String buildConfigId) {
+		return new Notification(NotificationType.BUILD_SUCCESSFUL, "project1",
+				buildConfigId, Utils.createBuildNotificationCommand(
+						NotificationType.BUILD_SUCCESSFUL, "project1",
+						buildConfigId, "user1"));
+	}
+
+}
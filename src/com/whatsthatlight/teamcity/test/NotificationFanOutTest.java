@@ -0,0 +1,182 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Local
+import com.whatsthatlight.teamcity.NotificationConnection;
+import com.whatsthatlight.teamcity.NotificationFanOut;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.whatsthatlight.teamcity.test.Commands.encode;
+import static com.whatsthatlight.teamcity.test.Commands.read;
+
+public class NotificationFanOutTest {
+
+	private ServerSocket first;
+	private ServerSocket second;
+	private NotificationFanOut fanOut;
+
+	@Before
+	public void setUp() throws IOException {
+		first = new ServerSocket(0);
+		first.setSoTimeout(5000);
+		second = new ServerSocket(0);
+		second.setSoTimeout(5000);
+		fanOut = new NotificationFanOut();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		first.close();
+		second.close();
+		fanOut.close();
+	}
+
+	@Test
+	public void testEveryEndpointGetsTheCommands() throws Exception {
+		NotificationConnection a = connection(first, 0);
+		NotificationConnection b = connection(second, 0);
+		Map<NotificationConnection, List<byte[]>> commands = new LinkedHashMap<NotificationConnection, List<byte[]>>();
+		commands.put(a, encode("a=1!", "b=2!"));
+		commands.put(b, encode("a=1!", "b=2!"));
+		assertTrue(fanOut.send(commands).isEmpty());
+		Socket clientA = first.accept();
+		Socket clientB = second.accept();
+		assertEquals("a=1!b=2!", read(clientA, 8));
+		assertEquals("a=1!b=2!", read(clientB, 8));
+		a.close();
+		b.close();
+		clientA.close();
+		clientB.close();
+	}
+
+	@Test
+	public void testUnreachableEndpointFailsAlone() throws Exception {
+		int port = second.getLocalPort();
+		second.close();
+		NotificationConnection a = connection(first, 0);
+		NotificationConnection b = new NotificationConnection("localhost",
+				port, 5000, true, 0);
+		Map<NotificationConnection, List<byte[]>> commands = new LinkedHashMap<NotificationConnection, List<byte[]>>();
+		commands.put(a, encode("a=1!"));
+		commands.put(b, encode("a=1!"));
+		Map<NotificationConnection, IOException> failures = fanOut.send(commands);
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey(b));
+		assertFalse(b.isConnected());
+		Socket client = first.accept();
+		assertEquals("a=1!", read(client, 4));
+		a.close();
+		client.close();
+	}
+
+	@Test
+	public void testSlowEndpointDoesNotDelayTheOthers() throws Exception {
+		// The second server never answers the capabilities request, so that
+		// endpoint waits out its negotiation timeout
+		final NotificationConnection a = connection(first, 0);
+		final NotificationConnection slow = connection(second, 3000);
+		final Map<NotificationConnection, List<byte[]>> commands = new LinkedHashMap<NotificationConnection, List<byte[]>>();
+		commands.put(slow, encode("a=1!"));
+		commands.put(a, encode("a=1!"));
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				fanOut.send(commands);
+			}
+		});
+		long start = System.currentTimeMillis();
+		sender.start();
+		Socket client = first.accept();
+		assertEquals("a=1!", read(client, 4));
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		sender.join(10000);
+		assertEquals(Boolean.FALSE, slow.isStreaming());
+		a.close();
+		client.close();
+	}
+
+	@Test
+	public void testSlowEndpointIsLeftUnderWay() throws Exception {
+		// The second server never answers the capabilities request
+		NotificationConnection a = connection(first, 0);
+		NotificationConnection slow = connection(second, 3000);
+		final List<String> outcomes = new ArrayList<String>();
+		fanOut.start(slow, encode("a=1!"), listener("slow", outcomes));
+		fanOut.start(a, encode("a=1!"), listener("a", outcomes));
+		long start = System.currentTimeMillis();
+		fanOut.run(500);
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals("[a delivered]", outcomes.toString());
+		assertTrue(fanOut.isBusy(slow));
+		assertFalse(fanOut.isBusy(a));
+		// It carries on with a later run
+		fanOut.run(Long.MAX_VALUE);
+		assertEquals("[a delivered, slow delivered]", outcomes.toString());
+		assertFalse(fanOut.isPending());
+		Socket client = first.accept();
+		assertEquals("a=1!", read(client, 4));
+		a.close();
+		slow.close();
+		client.close();
+	}
+
+	@Test
+	public void testCloseGivesUpSendsUnderWay() throws Exception {
+		// The server never answers the capabilities request
+		NotificationConnection slow = connection(first, 3000);
+		final List<String> outcomes = new ArrayList<String>();
+		fanOut.start(slow, encode("a=1!"), listener("slow", outcomes));
+		fanOut.run(0);
+		assertTrue(fanOut.isBusy(slow));
+		fanOut.close();
+		assertEquals("[slow failed]", outcomes.toString());
+		assertFalse(fanOut.isPending());
+		assertFalse(slow.isConnected());
+	}
+
+	private static NotificationFanOut.Listener listener(final String name,
+			final List<String> outcomes) {
+		return new NotificationFanOut.Listener() {
+			public void delivered() {
+				outcomes.add(name + " delivered");
+			}
+
+			public void failed(IOException e) {
+				outcomes.add(name + " failed");
+			}
+		};
+	}
+
+	private static NotificationConnection connection(ServerSocket server,
+			int negotiationTimeout) {
+		return new NotificationConnection("localhost", server.getLocalPort(),
+				5000, true, negotiationTimeout);
+	}
+
+}
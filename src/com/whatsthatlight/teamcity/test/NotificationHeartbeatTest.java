@@ -0,0 +1,103 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationDispatcher;
+import com.whatsthatlight.teamcity.NotificationHeartbeat;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+
+public class NotificationHeartbeatTest {
+
+	private NotificationDispatcher dispatcher;
+	private NotificationHeartbeat.Traffic traffic;
+
+	@Before
+	public void setUp() {
+		Utils.LOGGER = mock(Logger.class);
+		dispatcher = mock(NotificationDispatcher.class);
+		traffic = mock(NotificationHeartbeat.Traffic.class);
+	}
+
+	@Test
+	public void testBeatWhenQuiet() {
+		when(traffic.getQuietSince()).thenReturn(1000L);
+		NotificationHeartbeat heartbeat = new NotificationHeartbeat(dispatcher, 30000, traffic);
+		assertTrue(heartbeat.beat(31000));
+		ArgumentCaptor<Notification> sent = ArgumentCaptor.forClass(Notification.class);
+		verify(dispatcher).dispatch(sent.capture());
+		assertEquals("requesttypeid=4;status=1!", sent.getValue().getCommand());
+	}
+
+	@Test
+	public void testNoBeatAfterRecentTraffic() {
+		when(traffic.getQuietSince()).thenReturn(1000L);
+		NotificationHeartbeat heartbeat = new NotificationHeartbeat(dispatcher, 30000, traffic);
+		assertFalse(heartbeat.beat(15999));
+		verify(dispatcher, never()).dispatch(any(Notification.class));
+	}
+
+	@Test
+	public void testBeatAfterOwnBeatWentOutLate() {
+		// The previous beat went out a little after it was due
+		when(traffic.getQuietSince()).thenReturn(1005L);
+		NotificationHeartbeat heartbeat = new NotificationHeartbeat(dispatcher, 30000, traffic);
+		assertTrue(heartbeat.beat(31000));
+	}
+
+	@Test
+	public void testBeatWhileCommandsAreWaiting() {
+		// They may not be routed to the server that is quiet
+		when(traffic.getQuietSince()).thenReturn(0L);
+		when(dispatcher.getQueueDepth()).thenReturn(1);
+		NotificationHeartbeat heartbeat = new NotificationHeartbeat(dispatcher, 30000, traffic);
+		assertTrue(heartbeat.beat(60000));
+	}
+
+	@Test
+	public void testBeatsOnSchedule() throws Exception {
+		NotificationHeartbeat heartbeat = new NotificationHeartbeat(dispatcher, 10, traffic);
+		heartbeat.start();
+		verify(dispatcher, timeout(5000).atLeast(2)).dispatch(any(Notification.class));
+		heartbeat.stop();
+	}
+
+	@Test
+	public void testDisabled() {
+		NotificationHeartbeat heartbeat = new NotificationHeartbeat(dispatcher, 0, traffic);
+		assertFalse(heartbeat.isEnabled());
+		heartbeat.start();
+		heartbeat.stop();
+		verifyZeroInteractions(dispatcher);
+	}
+
+	@Test
+	public void testCreateFromDefaults() {
+		assertTrue(NotificationHeartbeat.create(dispatcher).isEnabled());
+	}
+
+}
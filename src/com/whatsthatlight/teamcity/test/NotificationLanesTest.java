@@ -0,0 +1,103 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.List;
+
+// Local
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationLanes;
+import com.whatsthatlight.teamcity.NotificationType;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.whatsthatlight.teamcity.test.Commands.build;
+
+public class NotificationLanesTest {
+
+	@Test
+	public void testLaneOf() {
+		assertEquals(NotificationLanes.Lane.URGENT, NotificationLanes.laneOf(NotificationType.BUILD_FAILED));
+		assertEquals(NotificationLanes.Lane.URGENT, NotificationLanes.laneOf(NotificationType.BUILD_FAILING));
+		assertEquals(NotificationLanes.Lane.URGENT, NotificationLanes.laneOf(NotificationType.BUILD_FAILED_TO_START));
+		assertEquals(NotificationLanes.Lane.URGENT, NotificationLanes.laneOf(NotificationType.BUILD_HANGING));
+		assertEquals(NotificationLanes.Lane.NORMAL, NotificationLanes.laneOf(NotificationType.BUILD_SUCCESSFUL));
+		assertEquals(NotificationLanes.Lane.NORMAL, NotificationLanes.laneOf(NotificationType.NONE));
+		assertEquals(NotificationLanes.Lane.ROUTINE, NotificationLanes.laneOf(NotificationType.BUILD_BUILDING));
+	}
+
+	@Test
+	public void testMostUrgentFirstThenInArrivalOrder() {
+		NotificationLanes lanes = new NotificationLanes(1000);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "1"), 0);
+		lanes.add(build(NotificationType.BUILD_SUCCESSFUL, "2"), 0);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "3"), 0);
+		lanes.add(build(NotificationType.BUILD_FAILED, "4"), 0);
+		lanes.add(build(NotificationType.BUILD_HANGING, "5"), 0);
+		assertEquals(5, lanes.size());
+		assertEquals("[4, 5, 2, 1, 3]", ids(lanes.take(10, 0)));
+		assertTrue(lanes.isEmpty());
+	}
+
+	@Test
+	public void testTakeAtMostMax() {
+		NotificationLanes lanes = new NotificationLanes(1000);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "1"), 0);
+		lanes.add(build(NotificationType.BUILD_FAILED, "2"), 0);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "3"), 0);
+		assertEquals("[2, 1]", ids(lanes.take(2, 0)));
+		assertEquals(1, lanes.size());
+	}
+
+	@Test
+	public void testLongWaitingGoesFirst() {
+		NotificationLanes lanes = new NotificationLanes(1000);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "1"), 0);
+		lanes.add(build(NotificationType.BUILD_SUCCESSFUL, "2"), 500);
+		lanes.add(build(NotificationType.BUILD_FAILED, "3"), 1500);
+		assertEquals("[1, 3, 2]", ids(lanes.take(10, 1001)));
+	}
+
+	@Test
+	public void testNewerStateReplacesWaitingOne() {
+		NotificationLanes lanes = new NotificationLanes(1000);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "1"), 0);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "2"), 0);
+		lanes.add(build(NotificationType.BUILD_FAILING, "1"), 0);
+		lanes.add(build(NotificationType.BUILD_BUILDING, "2"), 0);
+		assertEquals(2, lanes.size());
+		assertEquals(2, lanes.getReplacedCount());
+		List<Notification> taken = lanes.take(10, 0);
+		assertEquals("[1, 2]", ids(taken));
+		assertEquals(NotificationType.BUILD_FAILING, taken.get(0).getNotificationTypeId());
+	}
+
+	private static String ids(List<Notification> notifications) {
+		StringBuilder ids = new StringBuilder("[");
+		for (Notification notification : notifications) {
+			if (ids.length() > 1) {
+				ids.append(", ");
+			}
+			ids.append(notification.getBuildConfigId());
+		}
+		return ids.append("]").toString();
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Local
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationRateLimiter;
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.Utils;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.whatsthatlight.teamcity.test.Commands.build;
+
+public class NotificationRateLimiterTest {
+
+	private static final List<Notification> NOTHING = Collections.emptyList();
+
+	@Before
+	public void setUp() {
+		Utils.LOGGER = mock(Logger.class);
+	}
+
+	@Test
+	public void testBurstIsAdmitted() {
+		// One a second, two at once
+		NotificationRateLimiter limiter = new NotificationRateLimiter(60, 2, 0, 1, 60000);
+		List<Notification> admitted = limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILED, "buildconfig1"),
+				build(NotificationType.BUILD_BUILDING, "buildconfig1")), 0);
+		assertEquals(2, admitted.size());
+		assertEquals(1, limiter.getHeldCount());
+		assertEquals(1, limiter.getThrottledCount());
+	}
+
+	@Test
+	public void testLatestHeldStateIsSentWhenRateAllows() {
+		NotificationRateLimiter limiter = new NotificationRateLimiter(60, 1, 0, 1, 60000);
+		limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILED, "buildconfig1")), 0);
+		assertEquals(1, limiter.getHeldCount());
+		assertEquals(1, limiter.getReplacedCount());
+		assertEquals(1000, limiter.nextDue(0));
+		assertTrue(limiter.admit(NOTHING, 999).isEmpty());
+		List<Notification> admitted = limiter.admit(NOTHING, 1000);
+		assertEquals(1, admitted.size());
+		assertEquals(NotificationType.BUILD_FAILED, admitted.get(0).getNotificationTypeId());
+		assertEquals(0, limiter.getHeldCount());
+	}
+
+	@Test
+	public void testNewerStateDoesNotOvertakeHeldState() {
+		NotificationRateLimiter limiter = new NotificationRateLimiter(60, 1, 0, 1, 60000);
+		limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILING, "buildconfig1")), 0);
+		// A token is available again, but the held state goes first and is
+		// replaced by the newer one
+		List<Notification> admitted = limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_FAILED, "buildconfig1")), 1000);
+		assertEquals(1, admitted.size());
+		assertEquals(NotificationType.BUILD_FAILING, admitted.get(0).getNotificationTypeId());
+		assertEquals(1, limiter.getHeldCount());
+	}
+
+	@Test
+	public void testBuildConfigsAreLimitedApart() {
+		NotificationRateLimiter limiter = new NotificationRateLimiter(60, 1, 0, 1, 60000);
+		List<Notification> admitted = limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILED, "buildconfig1"),
+				build(NotificationType.BUILD_BUILDING, "buildconfig2")), 0);
+		assertEquals(2, admitted.size());
+		assertEquals("buildconfig1", admitted.get(0).getBuildConfigId());
+		assertEquals("buildconfig2", admitted.get(1).getBuildConfigId());
+	}
+
+	@Test
+	public void testGlobalLimit() {
+		// Six a minute, i.e. one every ten seconds, over all of them
+		NotificationRateLimiter limiter = new NotificationRateLimiter(0, 1, 6, 2, 60000);
+		List<Notification> admitted = limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_BUILDING, "buildconfig2"),
+				build(NotificationType.BUILD_BUILDING, "buildconfig3")), 0);
+		assertEquals(2, admitted.size());
+		assertEquals(10000, limiter.nextDue(0));
+		admitted = limiter.admit(NOTHING, 10000);
+		assertEquals(1, admitted.size());
+		assertEquals("buildconfig3", admitted.get(0).getBuildConfigId());
+	}
+
+	@Test
+	public void testRequestsAreNeverHeldBack() {
+		NotificationRateLimiter limiter = new NotificationRateLimiter(60, 1, 60, 1, 60000);
+		List<Notification> admitted = limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				new Notification(Utils.createServerUpCommand()),
+				new Notification(Utils.createServerUpCommand())), 0);
+		assertEquals(3, admitted.size());
+	}
+
+	@Test
+	public void testUnlimited() {
+		NotificationRateLimiter limiter = NotificationRateLimiter.unlimited();
+		assertFalse(limiter.isLimiting());
+		List<Notification> admitted = limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILED, "buildconfig1")), 0);
+		assertEquals(2, admitted.size());
+		assertEquals(Long.MAX_VALUE, limiter.nextDue(0));
+	}
+
+	@Test
+	public void testThrottlingIsReportedPeriodically() {
+		NotificationRateLimiter limiter = new NotificationRateLimiter(60, 1, 0, 1, 60000);
+		limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILED, "buildconfig1")), 0);
+		// The first is reported right away
+		verify(Utils.LOGGER, times(1)).warn(anyString());
+		limiter.admit(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_FAILED, "buildconfig1")), 30000);
+		verify(Utils.LOGGER, times(1)).warn(anyString());
+		assertEquals(31000, limiter.nextDue(30000));
+		assertEquals(1, limiter.admit(NOTHING, 31000).size());
+		verify(Utils.LOGGER, times(1)).warn(anyString());
+		// The rest is reported a minute after the first report
+		assertEquals(60000, limiter.nextDue(31000));
+		limiter.admit(NOTHING, 60000);
+		verify(Utils.LOGGER, times(2)).warn(anyString());
+		// Nothing more to report
+		assertEquals(Long.MAX_VALUE, limiter.nextDue(60000));
+	}
+
+	@Test
+	public void testCreateFromDefaults() {
+		assertTrue(NotificationRateLimiter.create().isLimiting());
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Local
+import com.whatsthatlight.teamcity.NotificationRouter;
+
+// Test
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class NotificationRouterTest {
+
+	private static final List<String> EVERYWHERE = Arrays.asList("a", "b", "c");
+
+	private Map<String, List<String>> rules;
+
+	@Before
+	public void setUp() {
+		rules = new LinkedHashMap<String, List<String>>();
+		rules.put("project1", Arrays.asList("a"));
+		rules.put("web_*", Arrays.asList("b"));
+		rules.put("*_legacy", Arrays.asList("c"));
+		rules.put("web_legacy", Arrays.asList("a", "c"));
+	}
+
+	@Test
+	public void testExactRule() {
+		NotificationRouter<String> router = router(NotificationRouter.NO_PARENTS);
+		assertEquals(Arrays.asList("a"), router.route("project1"));
+		assertEquals(Arrays.asList("a", "c"), router.route("web_legacy"));
+	}
+
+	@Test
+	public void testFirstMatchingPattern() {
+		NotificationRouter<String> router = router(NotificationRouter.NO_PARENTS);
+		assertEquals(Arrays.asList("b"), router.route("web_shop"));
+		assertEquals(Arrays.asList("b"), router.route("web_shop_legacy"));
+		assertEquals(Arrays.asList("c"), router.route("app_legacy"));
+	}
+
+	@Test
+	public void testUnmatchedGoesEverywhere() {
+		NotificationRouter<String> router = router(NotificationRouter.NO_PARENTS);
+		assertEquals(EVERYWHERE, router.route("project2"));
+		assertEquals(EVERYWHERE, router.route(null));
+	}
+
+	@Test
+	public void testPatternCharactersAreLiteral() {
+		rules.put("a.b*", Arrays.asList("c"));
+		NotificationRouter<String> router = router(NotificationRouter.NO_PARENTS);
+		assertEquals(Arrays.asList("c"), router.route("a.b1"));
+		assertEquals(EVERYWHERE, router.route("axb1"));
+	}
+
+	@Test
+	public void testInheritsFromNearestParent() {
+		final Map<String, String> parents = new HashMap<String, String>();
+		parents.put("child", "project1");
+		parents.put("grandchild", "child");
+		parents.put("orphan", "unknown");
+		NotificationRouter<String> router = router(new NotificationRouter.ParentResolver() {
+			public String getParentId(String projectId) {
+				return parents.get(projectId);
+			}
+		});
+		assertEquals(Arrays.asList("a"), router.route("grandchild"));
+		assertEquals(EVERYWHERE, router.route("orphan"));
+	}
+
+	@Test
+	public void testRouteIsRememberedUntilReset() {
+		final Map<String, String> parents = new HashMap<String, String>();
+		NotificationRouter<String> router = router(new NotificationRouter.ParentResolver() {
+			public String getParentId(String projectId) {
+				return parents.get(projectId);
+			}
+		});
+		assertEquals(EVERYWHERE, router.route("child"));
+		parents.put("child", "project1");
+		assertEquals(EVERYWHERE, router.route("child"));
+		router.reset();
+		assertEquals(Arrays.asList("a"), router.route("child"));
+	}
+
+	private NotificationRouter<String> router(
+			NotificationRouter.ParentResolver parents) {
+		return new NotificationRouter<String>(rules, EVERYWHERE, parents);
+	}
+
+}
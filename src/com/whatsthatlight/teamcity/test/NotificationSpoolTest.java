@@ -0,0 +1,177 @@
+/**
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationSpool;
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static com.whatsthatlight.teamcity.test.Commands.build;
+
+public class NotificationSpoolTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		Utils.LOGGER = mock(Logger.class);
+		directory = File.createTempFile("spool", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testAppendAndReadInOrder() throws Exception {
+		NotificationSpool spool = new NotificationSpool(directory, 1024 * 1024, 1024);
+		assertTrue(spool.isEmpty());
+		spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig1")));
+		spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig2")));
+		assertFalse(spool.isEmpty());
+		List<Notification> spooled = spool.readAll();
+		assertEquals(2, spooled.size());
+		assertEquals("buildconfig1", spooled.get(0).getBuildConfigId());
+		assertEquals("project1", spooled.get(0).getProjectId());
+		assertEquals(build(NotificationType.BUILD_BUILDING, "buildconfig2").getCommand(),
+				spooled.get(1).getCommand());
+	}
+
+	@Test
+	public void testReadKeepsLatestStatePerBuildConfig() throws Exception {
+		NotificationSpool spool = new NotificationSpool(directory, 1024 * 1024, 1024);
+		spool.append(Arrays.asList(
+				build(NotificationType.BUILD_BUILDING, "buildconfig1"),
+				build(NotificationType.BUILD_BUILDING, "buildconfig2"),
+				build(NotificationType.BUILD_FAILED, "buildconfig1")));
+		List<Notification> spooled = spool.readAll();
+		assertEquals(2, spooled.size());
+		assertEquals("buildconfig2", spooled.get(0).getBuildConfigId());
+		assertEquals(NotificationType.BUILD_FAILED, spooled.get(1).getNotificationTypeId());
+	}
+
+	@Test
+	public void testSurvivesRestart() throws Exception {
+		NotificationSpool spool = new NotificationSpool(directory, 1024 * 1024, 1024);
+		spool.append(Arrays.asList(build(NotificationType.BUILD_FAILED, "buildconfig1")));
+		NotificationSpool reopened = new NotificationSpool(directory, 1024 * 1024, 1024);
+		assertEquals(spool.size(), reopened.size());
+		assertEquals(1, reopened.readAll().size());
+		reopened.clear();
+		assertTrue(reopened.isEmpty());
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void testSegmentsRotate() throws Exception {
+		NotificationSpool spool = new NotificationSpool(directory, 1024 * 1024, 100);
+		for (int i = 0; i < 10; i++) {
+			spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig" + i)));
+		}
+		assertTrue(directory.listFiles().length > 1);
+		assertEquals(10, spool.readAll().size());
+	}
+
+	@Test
+	public void testCompactsWhenFull() throws Exception {
+		int recordSize = recordSize();
+		NotificationSpool spool = new NotificationSpool(directory, recordSize * 3, recordSize);
+		for (int i = 0; i < 10; i++) {
+			spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig1")));
+		}
+		assertTrue(spool.size() <= recordSize * 3);
+		assertEquals(1, spool.readAll().size());
+	}
+
+	@Test
+	public void testDiscardsOldestWhenStillFull() throws Exception {
+		int recordSize = recordSize();
+		NotificationSpool spool = new NotificationSpool(directory, recordSize * 3, recordSize);
+		for (int i = 0; i < 5; i++) {
+			spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig" + i)));
+		}
+		assertTrue(spool.size() <= recordSize * 3);
+		List<Notification> spooled = spool.readAll();
+		assertEquals("buildconfig4", spooled.get(spooled.size() - 1).getBuildConfigId());
+	}
+
+	@Test
+	public void testPartialRecordIgnored() throws Exception {
+		NotificationSpool spool = new NotificationSpool(directory, 1024 * 1024, 1024);
+		spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig1")));
+		File segment = directory.listFiles()[0];
+		FileOutputStream out = new FileOutputStream(segment, true);
+		out.write(new byte[] { 0, 0, 1, 0, 42 });
+		out.close();
+		NotificationSpool reopened = new NotificationSpool(directory, 1024 * 1024, 1024);
+		assertEquals(1, reopened.readAll().size());
+	}
+
+	@Test
+	public void testAppendAfterPartialRecordIsRead() throws Exception {
+		NotificationSpool spool = new NotificationSpool(directory, 1024 * 1024, 1024);
+		spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig1")));
+		File segment = directory.listFiles()[0];
+		long length = segment.length();
+		FileOutputStream out = new FileOutputStream(segment, true);
+		out.write(new byte[] { 0, 0, 1, 0, 42 });
+		out.close();
+		NotificationSpool reopened = new NotificationSpool(directory, 1024 * 1024, 1024);
+		assertEquals(length, segment.length());
+		assertEquals(length, reopened.size());
+		reopened.append(Arrays.asList(build(NotificationType.BUILD_FAILED, "buildconfig2")));
+		List<Notification> spooled = reopened.readAll();
+		assertEquals(2, spooled.size());
+		assertEquals("buildconfig2", spooled.get(1).getBuildConfigId());
+	}
+
+	private int recordSize() throws IOException {
+		File other = File.createTempFile("spool", "");
+		other.delete();
+		NotificationSpool spool = new NotificationSpool(other, 1024 * 1024, 1024);
+		spool.append(Arrays.asList(build(NotificationType.BUILD_BUILDING, "buildconfig1")));
+		int size = (int) spool.size();
+		spool.clear();
+		other.delete();
+		return size;
+	}
+
+}
@@ -33,6 +33,18 @@ public class NotificationTypeTest {
 		assertTrue(NotificationType.getName(NotificationType.NONE).equals("NONE"));
 	}
 
+	@Test
+	public void testGetNameAllTypes() throws IllegalAccessException, InvalidNotificationTypeException {
+		assertTrue(NotificationType.getName(NotificationType.BUILD_BUILDING).equals("BUILD_BUILDING"));
+		assertTrue(NotificationType.getName(NotificationType.BUILD_SUCCESSFUL).equals("BUILD_SUCCESSFUL"));
+		assertTrue(NotificationType.getName(NotificationType.TEST_RESPONSIBILITY_ASSIGNED).equals("TEST_RESPONSIBILITY_ASSIGNED"));
+	}
+
+	@Test(expected=InvalidNotificationTypeException.class)
+	public void testGetNameTooLargeInvalidNotificationTypeException() throws IllegalAccessException, InvalidNotificationTypeException {
+		NotificationType.getName(NotificationType.TEST_RESPONSIBILITY_ASSIGNED + 1);
+	}
+
 	@Test(expected=InvalidNotificationTypeException.class)
 	public void testGetNameInvalidNotificationTypeException() throws IllegalAccessException, InvalidNotificationTypeException {
 		NotificationType.getName(-1);
@@ -0,0 +1,148 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+// Jetbrains
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.users.UserSet;
+import jetbrains.buildServer.vcs.SelectPrevBuildPolicy;
+
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.BuildStateSnapshot;
+import com.whatsthatlight.teamcity.Notification;
+import com.whatsthatlight.teamcity.NotificationDispatcher;
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.NotificationWarmUp;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+
+public class NotificationWarmUpTest {
+
+	private BuildStateSnapshot snapshot;
+	private NotificationDispatcher dispatcher;
+	private ProjectManager projectManager;
+
+	@Before
+	public void setUp() {
+		Utils.LOGGER = mock(Logger.class);
+		snapshot = new BuildStateSnapshot();
+		dispatcher = mock(NotificationDispatcher.class);
+		SProject project1 = mock(SProject.class);
+		SProject project2 = mock(SProject.class);
+		List<SBuildType> buildTypes1 = Arrays.asList(
+				buildType("project1", "bt1", Status.NORMAL, false),
+				buildType("project1", "bt2", Status.FAILURE, false));
+		List<SBuildType> buildTypes2 = Arrays.asList(
+				buildType("project2", "bt3", null, false),
+				buildType("project2", "bt4", Status.FAILURE, true));
+		when(project1.getBuildTypes()).thenReturn(buildTypes1);
+		when(project2.getBuildTypes()).thenReturn(buildTypes2);
+		projectManager = mock(ProjectManager.class);
+		when(projectManager.getActiveProjects()).thenReturn(Arrays.asList(project1, project2));
+	}
+
+	@Test
+	public void testLastFinishedBuildsAreRemembered() {
+		new NotificationWarmUp(projectManager, snapshot, dispatcher, 2, 5000).run();
+		// Never built, and only built personally
+		assertEquals(2, snapshot.size());
+		for (BuildStateSnapshot.BuildState state : snapshot.getStates()) {
+			if (state.getBuildConfigId().equals("bt1")) {
+				assertEquals(NotificationType.BUILD_SUCCESSFUL, state.getNotificationTypeId());
+			} else {
+				assertEquals("bt2", state.getBuildConfigId());
+				assertEquals(NotificationType.BUILD_FAILED, state.getNotificationTypeId());
+				assertEquals("user1", state.getRecipients());
+			}
+		}
+	}
+
+	@Test
+	public void testServerUpIsSentOnce() {
+		new NotificationWarmUp(projectManager, snapshot, dispatcher, 2, 5000).run();
+		ArgumentCaptor<Notification> sent = ArgumentCaptor.forClass(Notification.class);
+		verify(dispatcher, times(1)).dispatch(sent.capture());
+		assertEquals(Utils.createServerUpCommand(), sent.getValue().getCommand());
+	}
+
+	@Test
+	public void testNewerStateIsKept() {
+		snapshot.update(NotificationType.BUILD_BUILDING, "project1", "bt2", "user2");
+		new NotificationWarmUp(projectManager, snapshot, dispatcher, 1, 5000).run();
+		for (BuildStateSnapshot.BuildState state : snapshot.getStates()) {
+			if (state.getBuildConfigId().equals("bt2")) {
+				assertEquals(NotificationType.BUILD_BUILDING, state.getNotificationTypeId());
+			}
+		}
+	}
+
+	@Test
+	public void testDisabled() {
+		NotificationWarmUp warmUp = new NotificationWarmUp(projectManager, snapshot, dispatcher, 0, 5000);
+		assertFalse(warmUp.isEnabled());
+		warmUp.start();
+		verifyZeroInteractions(dispatcher);
+	}
+
+	@Test
+	public void testCreateFromDefaults() {
+		assertTrue(NotificationWarmUp.create(projectManager, snapshot, dispatcher).isEnabled());
+	}
+
+	// A build configuration whose last build finished with the status, or
+	// that never finished a build if it's null
+	@SuppressWarnings("unchecked")
+	private static SBuildType buildType(String projectId, String buildConfigId,
+			Status status, boolean personal) {
+		SBuildType buildType = mock(SBuildType.class);
+		when(buildType.getBuildTypeId()).thenReturn(buildConfigId);
+		if (status != null) {
+			SFinishedBuild build = mock(SFinishedBuild.class);
+			when(build.getProjectId()).thenReturn(projectId);
+			when(build.getBuildTypeId()).thenReturn(buildConfigId);
+			when(build.getBuildStatus()).thenReturn(status);
+			when(build.isPersonal()).thenReturn(personal);
+			SUser user = mock(SUser.class);
+			when(user.getUsername()).thenReturn("user1");
+			UserSet<SUser> users = mock(UserSet.class);
+			when(users.getUsers()).thenReturn(new HashSet<SUser>(Collections.singleton(user)));
+			when(build.getCommitters(any(SelectPrevBuildPolicy.class))).thenReturn(users);
+			when(buildType.getLastChangesFinished()).thenReturn(build);
+		}
+		return buildType;
+	}
+
+}
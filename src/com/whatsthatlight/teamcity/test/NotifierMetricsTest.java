@@ -0,0 +1,101 @@
+/*
+Copyright 2013 Pieter Rautenbach
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.whatsthatlight.teamcity.test;
+
+// Java
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import com.intellij.openapi.diagnostic.Logger;
+// Local
+import com.whatsthatlight.teamcity.NotificationDispatcher;
+import com.whatsthatlight.teamcity.NotificationSender;
+import com.whatsthatlight.teamcity.NotificationType;
+import com.whatsthatlight.teamcity.NotifierMetrics;
+import com.whatsthatlight.teamcity.Utils;
+
+// Test
+import static org.mockito.Mockito.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class NotifierMetricsTest {
+
+	private NotifierMetrics metrics;
+
+	@Before
+	public void setUp() {
+		Utils.LOGGER = mock(Logger.class);
+		metrics = NotifierMetrics.get();
+		metrics.reset();
+	}
+
+	@Test
+	public void testEventsAreCountedByType() {
+		metrics.eventReceived(NotificationType.BUILD_FAILED);
+		metrics.eventReceived(NotificationType.BUILD_FAILED);
+		metrics.eventReceived(NotificationType.BUILD_BUILDING);
+		metrics.eventReceived(-1);
+		assertEquals(Long.valueOf(2), metrics.getEventCounts().get("BUILD_FAILED"));
+		assertEquals(Long.valueOf(1), metrics.getEventCounts().get("BUILD_BUILDING"));
+		assertEquals(Long.valueOf(0), metrics.getEventCounts().get("BUILD_SUCCESSFUL"));
+	}
+
+	@Test
+	public void testDump() {
+		metrics.eventReceived(NotificationType.BUILD_FAILED);
+		metrics.handled(2000 * 1000);
+		metrics.connectionFailed();
+		String dump = metrics.dump();
+		assertTrue(dump.contains("events.BUILD_FAILED: 1\n"));
+		assertFalse(dump.contains("events.BUILD_BUILDING"));
+		assertTrue(dump.contains("handlerTime: count=1 mean=2000us"));
+		assertTrue(dump.contains("connectionFailures: 1\n"));
+		assertTrue(dump.contains("endpoints.localhost:9191: CLOSED\n"));
+	}
+
+	@Test
+	public void testExposedOverJmx() throws Exception {
+		NotificationDispatcher dispatcher = new NotificationDispatcher(10,
+				NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+				mock(NotificationSender.class));
+		metrics.register(dispatcher);
+		// Registering again replaces the earlier registration
+		metrics.register(dispatcher);
+		metrics.sent(500 * 1000);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(NotifierMetrics.OBJECT_NAME);
+		assertEquals(0, server.getAttribute(name, "QueueDepth"));
+		CompositeData sendLatency = (CompositeData) server.getAttribute(name,
+				"SendLatency");
+		assertEquals(1L, sendLatency.get("count"));
+		assertEquals(500L, sendLatency.get("max"));
+		TabularData endpointStates = (TabularData) server.getAttribute(name,
+				"EndpointStates");
+		assertEquals("CLOSED", endpointStates.get(
+				new Object[] { "localhost:9191" }).get("value"));
+		metrics.unregister();
+		assertFalse(server.isRegistered(name));
+		assertEquals(0, metrics.getQueueDepth());
+	}
+
+}
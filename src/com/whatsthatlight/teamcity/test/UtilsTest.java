@@ -17,11 +17,15 @@ limitations under the License.
 package com.whatsthatlight.teamcity.test;
 
 // Local
+import com.whatsthatlight.teamcity.BuildStateSnapshot;
+import com.whatsthatlight.teamcity.NotificationType;
 import com.whatsthatlight.teamcity.Utils;
 
 // Java
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.AbstractMap.SimpleEntry;
@@ -39,6 +43,8 @@ import com.intellij.openapi.diagnostic.Logger;
 // Test
 import static org.mockito.Mockito.*;
 
+import org.mockito.ArgumentCaptor;
+
 import org.junit.*;
 
 import static org.junit.Assert.*;
@@ -75,6 +81,60 @@ public class UtilsTest {
 		Logger logger = mock(Logger.class);
 		Exception e = new Exception("No exception");
 		Utils.logStackTrace(logger, e);
+		// Once, with the trace
+		ArgumentCaptor<String> message = ArgumentCaptor.forClass(String.class);
+		verify(logger, times(1)).error(message.capture());
+		assertTrue(message.getValue().contains("No exception"));
+	}
+
+	@Test
+	public void testLogDebugNotFormattedWhenDisabled() {
+		Logger logger = mock(Logger.class);
+		when(logger.isDebugEnabled()).thenReturn(false);
+		Object argument = mock(Object.class);
+		Utils.logDebug(logger, "My debug message %1$s", argument);
+		verify(logger, never()).debug(anyString());
+		// The argument was never turned into a string
+		verifyZeroInteractions(argument);
+	}
+
+	@Test
+	public void testLogDebugWhenEnabled() {
+		Logger logger = mock(Logger.class);
+		when(logger.isDebugEnabled()).thenReturn(true);
+		Utils.logDebug(logger, "My debug message %1$s", 1);
+		verify(logger).debug("My debug message 1");
+	}
+
+	@Test
+	public void testLogInfoFormatted() {
+		Logger logger = mock(Logger.class);
+		Utils.logInfo(logger, "My info message %1$s", 1);
+		verify(logger).info("My info message 1");
+	}
+
+	@Test
+	public void testLogWarnFormatted() {
+		Logger logger = mock(Logger.class);
+		Utils.logWarn(logger, "My warning %1$s", 1);
+		verify(logger).warn("My warning 1");
+	}
+
+	@Test
+	public void testLogInfoFollowsOwnCategory() {
+		org.apache.log4j.Logger category = org.apache.log4j.Logger
+				.getLogger(Utils.LOGGER_NAME);
+		org.apache.log4j.Level level = category.getLevel();
+		Logger logger = Logger.getInstance("other");
+		try {
+			category.setLevel(org.apache.log4j.Level.WARN);
+			assertFalse(Utils.isEnabledFor(Utils.LOGGER, org.apache.log4j.Level.INFO));
+			assertTrue(Utils.isEnabledFor(Utils.LOGGER, org.apache.log4j.Level.WARN));
+			// Another logger decides for itself
+			assertTrue(Utils.isEnabledFor(logger, org.apache.log4j.Level.INFO));
+		} finally {
+			category.setLevel(level);
+		}
 	}
 
 	@Test
@@ -115,6 +175,36 @@ public class UtilsTest {
 		assertTrue(actualCmd.equals(expectedCmd));
 	}
 	
+	@Test
+	public void testCreateServerDownCommand() {
+		String expectedCmd = "requesttypeid=4;status=0!";
+		String actualCmd = Utils.createServerDownCommand();
+		assertTrue(actualCmd.equals(expectedCmd));
+	}
+	
+	@Test
+	public void testCreateCapabilitiesCommand() {
+		String expectedCmd = "requesttypeid=5;batch=1!";
+		String actualCmd = Utils.createCapabilitiesCommand();
+		assertTrue(actualCmd.equals(expectedCmd));
+	}
+	
+	@Test
+	public void testCreateCapabilitiesCommandOfferingBinary() {
+		String expectedCmd = "requesttypeid=5;batch=1;binary=1!";
+		String actualCmd = Utils.createCapabilitiesCommand(true);
+		assertTrue(actualCmd.equals(expectedCmd));
+	}
+	
+	@Test
+	public void testCreateSnapshotCommand() {
+		String expectedCmd = "requesttypeid=6;count=2;notificationtypeid0=4;projectid0=project1;buildconfigid0=bt1;recipients0=user1;notificationtypeid1=2;projectid1=project1;buildconfigid1=bt2;recipients1=!";
+		String actualCmd = Utils.createSnapshotCommand(Arrays.asList(
+				new BuildStateSnapshot.BuildState(NotificationType.BUILD_FAILED, "project1", "bt1", "user1"),
+				new BuildStateSnapshot.BuildState(NotificationType.BUILD_BUILDING, "project1", "bt2", "")));
+		assertEquals(expectedCmd, actualCmd);
+	}
+	
 	@Test
 	public void testCreateBuildNotificationCommand() {
 		int notificationType = 1;
@@ -159,6 +249,15 @@ public class UtilsTest {
 		assertTrue(actualCmd.equals(expectedCmd));
 	}
 
+	@Test
+	public void testCreateCommandStripsTerminatorFromValues() {
+		LinkedList<SimpleEntry<String, String>> list = new LinkedList<SimpleEntry<String, String>>();
+		list.add(new SimpleEntry<String, String>("username", "us!er"));
+		String expectedCmd = "username=user!";
+		String actualCmd = Utils.createCommand(list);
+		assertTrue(actualCmd.equals(expectedCmd));
+	}
+
 	@Test
 	public void testConvertSUserToCsvForSingleUser() throws Exception {
 		String expectedUser = "user";
@@ -194,6 +293,20 @@ public class UtilsTest {
 		assertTrue(expectedCsv.equals(Utils.convertUserSetToCsv(userSet)));
 	}
 
+	@Test
+	public void testConvertSetToCsvWithCsvValue() {
+		List<Integer> list = new LinkedList<Integer>();
+		list.add(1);
+		list.add(2);
+		String actualCsv = Utils.convertSetToCsv(list,
+				new Utils.CsvValue<Integer>() {
+					public String of(Integer element) {
+						return "user" + element;
+					}
+				}, ",");
+		assertEquals("user1,user2", actualCsv);
+	}
+
 	@Test
 	public void testMergeCsvsDuplicates() throws Exception {
 		String firstCsv = "user1";